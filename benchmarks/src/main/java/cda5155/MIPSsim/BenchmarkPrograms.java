@@ -0,0 +1,63 @@
+package cda5155.MIPSsim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The programs run by the benchmarks, as the lines of an input file.
+class BenchmarkPrograms {
+    // The most trips loop() can make, since the count is an ADDI immediate.
+    static final int MAX_ITERATIONS = Short.MAX_VALUE;
+
+    static List<String> assemble(String... source) {
+        List<String> lines = new ArrayList<String>(source.length);
+        for (String line : source) {
+            lines.add(Instruction.assembleString(line));
+        }
+        return lines;
+    }
+
+    // Five trips around a multiply and store loop.
+    static List<String> small() {
+        List<String> lines = assemble(
+            "ADDI R1, R0, #3",
+            "ADDI R2, R0, #5",
+            "MULT R1, R2",
+            "ADDI R2, R2, #-1",
+            "MFLO R3",
+            "ADD R4, R4, R3",
+            "SW R4, 292(R0)",
+            "BGTZ R2, #-24",
+            "BREAK");
+        lines.add(Memory.word2string(0));
+        return lines;
+    }
+
+    // A loop that uses every unit, with a store followed by a load of the
+    // same word, run for the given number of iterations.
+    static List<String> loop(int iterations) {
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations out of range: " + iterations);
+        }
+        List<String> lines = assemble(
+            "ADDI R1, R0, #" + iterations,
+            "ADDI R2, R2, #3",
+            "MULT R2, R1",
+            "MFLO R3",
+            "ADD R4, R4, R3",
+            "SW R4, 300(R0)",
+            "LW R7, 300(R0)",
+            "ADD R8, R7, R6",
+            "ADDI R1, R1, #-1",
+            "BNE R1, R0, #-36",
+            "BREAK");
+        lines.add(Memory.word2string(0));
+        return lines;
+    }
+
+    // A seeded program from ProgramGenerator with the given mix.
+    static List<String> generated(String mix) {
+        return ProgramGenerator.parse(new String[] {
+            "seed=1", "mix=" + mix, "instructions=2000", "tripCount=4"
+        }).generate();
+    }
+}
@@ -0,0 +1,77 @@
+package cda5155.MIPSsim;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Decoding and assembling one instruction of each kind. The scores are per
+// instruction.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InstructionBenchmark {
+    static final String[] SOURCE = {
+        "J #264",
+        "BEQ R1, R2, #8",
+        "BNE R1, R0, #-36",
+        "BGTZ R2, #-24",
+        "SW R4, 300(R0)",
+        "LW R7, 300(R0)",
+        "BREAK",
+        "ADD R4, R4, R3",
+        "SUB R5, R4, R3",
+        "AND R6, R1, R2",
+        "OR R7, R1, R2",
+        "SRL R8, R1, R2",
+        "SRA R9, R1, R2",
+        "ADDI R2, R2, #3",
+        "ANDI R3, R2, #255",
+        "ORI R3, R2, #256",
+        "MULT R2, R1",
+        "DIV R2, R1",
+        "MFHI R10",
+        "MFLO R3",
+    };
+    static final int COUNT = 20;
+
+    int[] words;
+
+    @Setup
+    public void setup() {
+        List<String> lines = BenchmarkPrograms.assemble(SOURCE);
+        words = new int[lines.size()];
+        for (int k = 0; k < words.length; ++k) {
+            words[k] = Memory.string2word(lines.get(k));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void decode(Blackhole blackhole) {
+        for (int k = 0; k < COUNT; ++k) {
+            blackhole.consume(Instruction.decode(Memory.index2addr(k), words[k]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void assemble(Blackhole blackhole) {
+        for (int k = 0; k < COUNT; ++k) {
+            blackhole.consume(Instruction.assemble(SOURCE[k]));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cda5155.MIPSsim;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing an input file's lines into a Memory: the loop program followed by
+// a data segment of dataWords words.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoryBenchmark {
+    @Param({"16", "65536"})
+    int dataWords;
+
+    List<String> lines;
+
+    @Setup
+    public void setup() {
+        lines = BenchmarkPrograms.loop(100);
+        for (int k = 1; k < dataWords; ++k) {
+            lines.add(Memory.word2string(k * 0x9E3779B9));
+        }
+    }
+
+    @Benchmark
+    public Memory parse() {
+        return new Memory(lines);
+    }
+}
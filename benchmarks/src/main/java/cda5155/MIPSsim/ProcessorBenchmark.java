@@ -0,0 +1,110 @@
+package cda5155.MIPSsim;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Pipeline stepping and snapshot rendering. With the gc profiler,
+// gc.alloc.rate.norm for step is the bytes allocated per simulated cycle.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+    // A processor part way through a long loop.
+    @State(Scope.Thread)
+    public static class Running {
+        // Cycles run before measuring, so every unit has work.
+        static final int WARM_CYCLES = 100;
+
+        List<String> lines;
+        Processor processor;
+        SnapshotRenderer renderer;
+        int cycle;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            lines = BenchmarkPrograms.loop(BenchmarkPrograms.MAX_ITERATIONS);
+            reset();
+        }
+
+        void reset() {
+            processor = new Processor(new Memory(lines));
+            renderer = processor.renderer();
+            for (cycle = 1; cycle <= WARM_CYCLES; ++cycle) {
+                processor.step();
+            }
+        }
+    }
+
+    @Benchmark
+    public Processor step(Running running) {
+        if (!running.processor.step()) running.reset();
+        return running.processor;
+    }
+
+    // Renders with a new renderer on each call, as cycleSnapshot() does.
+    @Benchmark
+    public String cycleSnapshot(Running running) {
+        return running.processor.cycleSnapshot(running.cycle);
+    }
+
+    // Renders into the reused buffer of one renderer, as simulate() does.
+    @Benchmark
+    public int render(Running running) {
+        return running.renderer.render(running.processor.state, running.cycle).length();
+    }
+
+    @State(Scope.Thread)
+    public static class Program {
+        // small, a trip count for the loop program, or a ProgramGenerator mix.
+        @Param({"small", "1000", "alu", "muldiv", "memory"})
+        String program;
+
+        List<String> lines;
+        StringBuilder output = new StringBuilder(1 << 20);
+
+        @Setup
+        public void setup() {
+            if ("small".equals(program)) {
+                lines = BenchmarkPrograms.small();
+            }
+            else if (Character.isDigit(program.charAt(0))) {
+                lines = BenchmarkPrograms.loop(Integer.parseInt(program));
+            }
+            else {
+                lines = BenchmarkPrograms.generated(program);
+            }
+        }
+    }
+
+    // Simulates the whole program, from parsing the input to writing every
+    // snapshot into a reused buffer.
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int simulate(Program program) throws IOException {
+        program.output.setLength(0);
+        new Processor(new Memory(program.lines)).simulate(program.output);
+        return program.output.length();
+    }
+
+    // Simulates the whole program into a new String.
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String simulateString(Program program) {
+        return new Processor(new Memory(program.lines)).simulate();
+    }
+}
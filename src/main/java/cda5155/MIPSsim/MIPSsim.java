@@ -11,16 +11,75 @@ package cda5155.MIPSsim;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.io.PrintWriter;
+import java.io.PrintStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.Charset;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
 
 enum InstType {
     J, BEQ, BNE, BGTZ, SW, LW, BREAK,
@@ -62,21 +121,31 @@ abstract class Instruction {
         return -1;
     }
 
-    // The value of the first source argument. To be set by the issue unit.
-    public int src1val;
-
     // The index of the gpr for the second source argument.
     int src2() {
         return -1;
     }
 
-    // The value of the second source argument. To be set by the issue unit.
-    public int src2val;
+    // Marks a store in srcMask(), so the issue unit can look for earlier
+    // stores with the same test it uses for earlier readers.
+    static final long STORE_BIT = 1L << 63;
+
+    // The registers read and written as bit masks, laid out as by
+    // RegisterFile.mask(). These are set by decode().
+    protected long _srcMask;
+    long srcMask() {
+        return _srcMask;
+    }
+
+    protected long _destMask;
+    long destMask() {
+        return _destMask;
+    }
 
-    // The result of the instruction's computation. Varies between instructions.
-    protected int _result;
-    int result() throws RuntimeException {
-        return _result;
+    protected void computeMasks() {
+        _srcMask = RegisterFile.mask(src1()) | RegisterFile.mask(src2());
+        if (InstType.SW == _type) _srcMask |= STORE_BIT;
+        _destMask = RegisterFile.mask(dest());
     }
 
     public Instruction(int address, int word) throws IllegalArgumentException {
@@ -84,8 +153,12 @@ abstract class Instruction {
         this._word = word;
     }
 
-    // This method should use the argument values and set result.
-    public abstract void execute();
+    // Returns the result of the instruction's computation on the values of
+    // its source arguments. What the result means varies between
+    // instructions. Instructions hold no per-execution state, so the decoded
+    // instructions kept by Memory can be shared by every trip through the
+    // pipeline.
+    public abstract int execute(int src1val, int src2val);
 
     public static int getFirst3Bits(int word) {
         return (word & 0xE0000000) >>> 29;
@@ -106,20 +179,28 @@ abstract class Instruction {
     protected static final String unknownInstMsg = "Unknown Instruction.";
 
     public static Instruction decode(int address, int word) throws IllegalArgumentException {
+        Instruction inst;
         switch (getFirst3Bits(word)) {
             case 0:
-                return InstCat1.decode(address, word);
+                inst = InstCat1.decode(address, word);
+                break;
             case 1:
-                return InstCat2.decode(address, word);
+                inst = InstCat2.decode(address, word);
+                break;
             case 2:
-                return InstCat3.decode(address, word);
+                inst = InstCat3.decode(address, word);
+                break;
             case 3:
-                return InstCat4.decode(address, word);
+                inst = InstCat4.decode(address, word);
+                break;
             case 4:
-                return InstCat5.decode(address, word);
+                inst = InstCat5.decode(address, word);
+                break;
             default:
                 throw new IllegalArgumentException(unknownInstMsg);
         }
+        inst.computeMasks();
+        return inst;
     }
 
     // Convenience method for testing.
@@ -204,8 +285,10 @@ abstract class Instruction {
         return String.join("\t", Memory.word2string(_word), Integer.toString(_address), disassemble());
     }
 
+    protected static final Pattern tokenSeparator = Pattern.compile("\\s+|,");
+
     public static String[] tokenize(String instruction) {
-        String[] fields = instruction.split("\\s+|,");
+        String[] fields = tokenSeparator.split(instruction);
         List<String> output = new ArrayList<String>(fields.length);
         for (String field : fields) {
             if (field.isEmpty()) continue;
@@ -329,9 +412,9 @@ class InstJ extends InstCat1 {
         _target = (address + 4) & 0xC0000000 | (word & 0x03FFFFFF) << 2;
     }
 
-    // result contains the target address to jump to.
-    public void execute() {
-        _result = _target;
+    // The result is the target address to jump to.
+    public int execute(int src1val, int src2val) {
+        return _target;
     }
 
     public String disassemble() {
@@ -375,25 +458,19 @@ class InstBranchCmpr extends InstCat1 {
         _target = address + 4 + _offset;
     }
 
-    // result contains the target address to jump to.
-    public void execute() {
+    // The result is the address of the next instruction to execute.
+    public int execute(int src1val, int src2val) {
         switch (_type) {
             case BEQ:
                 if (src1val == src2val) {
-                    _result = _target;
-                }
-                else {
-                    _result = _address + 4;
+                    return _target;
                 }
-                break;
+                return _address + 4;
             case BNE:
                 if (src1val != src2val) {
-                    _result = _target;
+                    return _target;
                 }
-                else {
-                    _result = _address + 4;
-                }
-                break;
+                return _address + 4;
             default:
                 throw new IllegalArgumentException(unknownInstMsg);
         }
@@ -468,14 +545,12 @@ class InstBGTZ extends InstCat1 {
         _target = _address + 4 + _offset;
     }
 
-    // result contains the target address to jump to.
-    public void execute() {
+    // The result is the address of the next instruction to execute.
+    public int execute(int src1val, int src2val) {
         if (src1val > 0) {
-            _result = _target;
-        }
-        else {
-            _result = _address + 4;
+            return _target;
         }
+        return _address + 4;
     }
 
     public String disassemble() {
@@ -500,9 +575,6 @@ abstract class InstLoadStore extends InstCat1 {
         return _offset;
     }
 
-    // The data word from memory. To be set by the MEM unit.
-    public int data;
-
     public InstLoadStore(int address, int word) {
         super(address, word);
         _type = getInstType(word);
@@ -511,9 +583,9 @@ abstract class InstLoadStore extends InstCat1 {
         _offset = getSignedLower16(word);
     }
 
-    // result contains the memory address to load or store.
-    public void execute() {
-        _result = src1val + _offset;
+    // The result is the memory address to load or store.
+    public int execute(int src1val, int src2val) {
+        return src1val + _offset;
     }
 
     public static InstType getInstType(int word) throws IllegalArgumentException {
@@ -542,6 +614,8 @@ abstract class InstLoadStore extends InstCat1 {
         return String.format("%s R%d, %d(R%d)", instString, _rt, _offset, _base);
     }
 
+    protected static final Pattern addressPattern = Pattern.compile("(\\d+)\\(R(\\d+)\\)");
+
     public static int assemble(String[] tokens) {
         String op = tokens[0];
         int word;
@@ -552,8 +626,7 @@ abstract class InstLoadStore extends InstCat1 {
             word = shiftOpCode(5);
         }
         else throw new RuntimeException(assembleError(op));
-        Pattern pattern = Pattern.compile("(\\d+)\\(R(\\d+)\\)");
-        Matcher matcher = pattern.matcher(tokens[2]);
+        Matcher matcher = addressPattern.matcher(tokens[2]);
         if (!matcher.matches()) {
             throw new RuntimeException("Invalid target address of branch: " + tokens[2]);
         }
@@ -592,8 +665,9 @@ class InstBREAK extends InstCat1 {
         _type = InstType.BREAK;
     }
 
-    public void execute() {
+    public int execute(int src1val, int src2val) {
         // nothing to do here
+        return 0;
     }
 
     public String disassemble() {
@@ -697,21 +771,17 @@ class InstArithType extends InstCat2 {
         _errMsg = "Invalid instruction type InstArithType: " + _type;
     }
 
-    // result contains the result of an arithmetic expression.
-    public void execute() {
+    // The result is the value of an arithmetic expression.
+    public int execute(int src1val, int src2val) {
         switch (_type) {
             case ADD:
-                _result = src1val + src2val;
-                break;
+                return src1val + src2val;
             case SUB:
-                _result = src1val - src2val;
-                break;
+                return src1val - src2val;
             case AND:
-                _result = src1val & src2val;
-                break;
+                return src1val & src2val;
             case OR:
-                _result = src1val | src2val;
-                break;
+                return src1val | src2val;
             default:
                 throw new UnknownError(_errMsg);
         }
@@ -758,15 +828,13 @@ class InstBitShift extends InstCat2 {
         _errMsg = "Invalid instruction type for InstBitShift: " + _type;
     }
 
-    // result contains the output of the bitshift operation.
-    public void execute() {
+    // The result is the output of the bitshift operation.
+    public int execute(int src1val, int src2val) {
         switch (_type) {
             case SRL:
-                _result = src1val >>> src2val;
-                break;
+                return src1val >>> src2val;
             case SRA:
-                _result = src1val >> src2val;
-                break;
+                return src1val >> src2val;
             default:
                 throw new UnknownError(_errMsg);
         }
@@ -866,9 +934,9 @@ class InstADDI extends InstCat3 {
         _imm = getSignedLower16(word);
     }
 
-    // result contains the output of addition between src1val and immediate value
-    public void execute() {
-        _result = src1val + _imm;
+    // The result is the sum of src1val and the immediate value.
+    public int execute(int src1val, int src2val) {
+        return src1val + _imm;
     }
 
     public String disassemble() {
@@ -891,18 +959,16 @@ class InstLogicalImm extends InstCat3 {
         _errMsg = "Invalid instruction type for InstLogicalImm: " + _type;
     }
 
-    // result contains the result of the logical operator between
+    // The result is the result of the logical operator between
     // src1val and the immediate value.
-    public void execute() {
+    public int execute(int src1val, int src2val) {
         switch (_type) {
             case ANDI:
-                _result = src1val & _imm;
-                break;
+                return src1val & _imm;
             case ORI:
-                _result = src1val | _imm;
-                break;
+                return src1val | _imm;
             default:
-
+                throw new UnknownError(_errMsg);
         }
     }
 
@@ -940,16 +1006,6 @@ class InstCat4 extends Instruction {
         return _src2;
     }
 
-    protected int _hi;
-    int hi() {
-        return _hi;
-    }
-
-    protected int _lo;
-    int lo() {
-        return _lo;
-    }
-
     public InstCat4(int address, int word) {
         super(address, word);
         _type = getInstType(word);
@@ -958,19 +1014,27 @@ class InstCat4 extends Instruction {
         _errMsg = "Invalid instruction type for category 4: " + _type;
     }
 
-    // result, hi, and lo are set by this method.
-    public void execute() {
+    // The result is the value for lo. The product is formed from 32 bit
+    // operands, so MULT does not carry into hi.
+    public int execute(int src1val, int src2val) {
+        switch (_type) {
+            case MULT:
+                return src1val * src2val;
+            case DIV:
+                return src1val / src2val;
+            default:
+                throw new UnknownError(_errMsg);
+        }
+    }
+
+    // Returns the value for hi.
+    public int executeHi(int src1val, int src2val) {
         switch (_type) {
             case MULT:
                 long tmp = src1val * src2val;
-                _lo = (int) (tmp & 0x00000000FFFFFFFFL);
-                _hi = (int)((tmp & 0xFFFFFFFF00000000L) >>> 32);
-                break;
+                return (int)((tmp & 0xFFFFFFFF00000000L) >>> 32);
             case DIV:
-                _result = src1val / src2val;
-                _lo = _result;
-                _hi = src1val % src2val;
-                break;
+                return src1val % src2val;
             default:
                 throw new UnknownError(_errMsg);
         }
@@ -1029,8 +1093,8 @@ abstract class InstCat5 extends Instruction {
         _dest = getFirstArg(word);
     }
 
-    public void execute() {
-        _result = src1val;
+    public int execute(int src1val, int src2val) {
+        return src1val;
     }
 
     public static InstCat5 decode(int address, int word) {
@@ -1124,9 +1188,367 @@ class Assembler {
     }
 }
 
+// Generates program images of a chosen size and shape for benchmark and
+// stress runs. The same settings and seed always give the same program.
+//
+// A program is a prologue that sets up its reserved registers, a run of
+// blocks that are either loops or straight-line code, and BREAK, followed by
+// the data segment. Loops count down in LOOP_REG. Loads and stores address
+// the data segment from BASE_REG, and DIV always divides by DIVISOR_REG,
+// which is never zero.
+class ProgramGenerator {
+    enum Mix {
+        // Percentages of ALU, MULT/DIV and LW/SW instructions.
+        ALU(80, 10, 10), MULDIV(30, 50, 20), MEMORY(30, 10, 60), BALANCED(50, 20, 30);
+
+        final int alu;
+        final int mulDiv;
+        final int memory;
+
+        Mix(int alu, int mulDiv, int memory) {
+            if (100 != alu + mulDiv + memory) throw new IllegalArgumentException("Mix shares must sum to 100.");
+            this.alu = alu;
+            this.mulDiv = mulDiv;
+            this.memory = memory;
+        }
+    }
+
+    static final int BASE_REG = 31;
+    static final int LOOP_REG = 30;
+    static final int DIVISOR_REG = 29;
+    static final int SCRATCH_REG = 28;
+    // Generated instructions write R1 to R27.
+    static final int WORKING_REGS = 27;
+    // The number of instructions in the prologue.
+    static final int PROLOGUE = 6 + 8;
+    // The most words LW and SW can reach, since their offsets are at most
+    // 32767.
+    static final int ADDRESSABLE_WORDS = 8192;
+    // Keeps the data segment's address within reach of the prologue.
+    static final int MAX_INSTRUCTIONS = 1 << 24;
+
+    long seed = 1;
+    Mix mix = Mix.BALANCED;
+    // The number of instructions in the program, including the prologue and
+    // BREAK.
+    int instructions = 1000;
+    // The number of instructions between a register's write and its reads,
+    // chosen uniformly from this range.
+    int minDistance = 1;
+    int maxDistance = 4;
+    // The number of instructions in each block, excluding loop control.
+    int blockLength = 16;
+    // The trips around each loop, or 1 for straight-line code.
+    int tripCount = 4;
+    // The fraction of block instructions that are forward branches.
+    double branchDensity = 0.05;
+    int dataWords = 64;
+
+    protected Random random;
+    // The gpr written by each generated instruction, or -1, so sources can
+    // be chosen by dependency distance.
+    protected int[] written;
+    protected int count;
+    protected Appendable out;
+    protected List<String> lines;
+
+    public static ProgramGenerator parse(String[] args) throws IllegalArgumentException {
+        ProgramGenerator generator = new ProgramGenerator();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+            String key = arg.substring(0, equals);
+            String value = arg.substring(equals + 1);
+            if (key.equals("seed")) generator.seed = Long.parseLong(value);
+            else if (key.equals("mix")) generator.mix = Mix.valueOf(value.toUpperCase());
+            else if (key.equals("instructions")) generator.instructions = Integer.parseInt(value);
+            else if (key.equals("minDistance")) generator.minDistance = Integer.parseInt(value);
+            else if (key.equals("maxDistance")) generator.maxDistance = Integer.parseInt(value);
+            else if (key.equals("blockLength")) generator.blockLength = Integer.parseInt(value);
+            else if (key.equals("tripCount")) generator.tripCount = Integer.parseInt(value);
+            else if (key.equals("branchDensity")) generator.branchDensity = Double.parseDouble(value);
+            else if (key.equals("dataWords")) generator.dataWords = Integer.parseInt(value);
+            else throw new IllegalArgumentException("Unknown setting: " + key);
+        }
+        return generator;
+    }
+
+    protected void validate() throws IllegalArgumentException {
+        if (instructions < PROLOGUE + 1 || instructions > MAX_INSTRUCTIONS) {
+            throw new IllegalArgumentException("instructions out of range: " + instructions);
+        }
+        if (minDistance < 1 || maxDistance < minDistance) {
+            throw new IllegalArgumentException("Invalid dependency distance range.");
+        }
+        if (blockLength < 1 || blockLength > Short.MAX_VALUE - 2) {
+            throw new IllegalArgumentException("blockLength out of range: " + blockLength);
+        }
+        if (tripCount < 1 || tripCount > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("tripCount out of range: " + tripCount);
+        }
+        if (branchDensity < 0 || branchDensity > 1) {
+            throw new IllegalArgumentException("branchDensity out of range: " + branchDensity);
+        }
+        if (dataWords < 1) throw new IllegalArgumentException("dataWords must be positive.");
+    }
+
+    // Returns the lines of the program, as Memory reads them.
+    public List<String> generate() {
+        List<String> lines = new ArrayList<String>(instructions + dataWords);
+        try {
+            generate(null, lines);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return lines;
+    }
+
+    // Writes the program in the input file format, one word per line.
+    public void generate(Appendable out) throws IOException {
+        generate(out, null);
+    }
+
+    // Writes the lines to out, or adds them to lines if out is null.
+    protected void generate(Appendable out, List<String> lines) throws IOException {
+        validate();
+        random = new Random(seed);
+        written = new int[instructions];
+        count = 0;
+        this.out = out;
+        this.lines = lines;
+        try {
+            prologue();
+            int budget = instructions - PROLOGUE - 1;
+            int length;
+            while (budget > 0) {
+                if (tripCount > 1 && budget > 3) {
+                    length = Math.min(blockLength, budget - 3);
+                    loop(length);
+                    budget -= length + 3;
+                }
+                else {
+                    length = Math.min(blockLength, budget);
+                    block(length);
+                    budget -= length;
+                }
+            }
+            emit("BREAK", -1);
+            for (int k = 0; k < dataWords; ++k) {
+                line(Memory.word2string(random.nextInt()));
+            }
+        }
+        finally {
+            this.out = null;
+            this.lines = null;
+        }
+    }
+
+    protected void line(String line) throws IOException {
+        if (null == out) {
+            lines.add(line);
+            return;
+        }
+        out.append(line).append(MIPSsim.LINE_SEP);
+    }
+
+    protected void emit(String instruction, int dest) throws IOException {
+        line(Memory.word2string(Instruction.assemble(instruction)));
+        written[count++] = dest;
+    }
+
+    protected void prologue() throws IOException {
+        // BASE_REG = dataStart, built as a product since immediates have only
+        // 16 bits.
+        int dataStart = Memory.index2addr(instructions);
+        emit("ADDI R" + SCRATCH_REG + ", R0, #4096", SCRATCH_REG);
+        emit("ADDI R" + BASE_REG + ", R0, #" + dataStart / 4096, BASE_REG);
+        emit("MULT R" + BASE_REG + ", R" + SCRATCH_REG, -1);
+        emit("MFLO R" + BASE_REG, BASE_REG);
+        emit("ADDI R" + BASE_REG + ", R" + BASE_REG + ", #" + dataStart % 4096, BASE_REG);
+        emit("ADDI R" + DIVISOR_REG + ", R0, #" + (1 + random.nextInt(100)), DIVISOR_REG);
+        for (int k = 1; k <= 8; ++k) {
+            emit("ADDI R" + k + ", R0, #" + (random.nextInt(2001) - 1000), k);
+        }
+    }
+
+    protected void loop(int length) throws IOException {
+        emit("ADDI R" + LOOP_REG + ", R0, #" + tripCount, -1);
+        block(length);
+        emit("ADDI R" + LOOP_REG + ", R" + LOOP_REG + ", #-1", -1);
+        emit("BGTZ R" + LOOP_REG + ", #" + -4 * (length + 2), -1);
+    }
+
+    // Emits length instructions that only branch forward within the block.
+    protected void block(int length) throws IOException {
+        int remaining;
+        for (int k = 0; k < length; ++k) {
+            remaining = length - k - 1;
+            if (remaining > 0 && random.nextDouble() < branchDensity) {
+                branch(1 + random.nextInt(Math.min(3, remaining)));
+            }
+            else {
+                instruction();
+            }
+        }
+    }
+
+    protected void branch(int skip) throws IOException {
+        int offset = 4 * skip;
+        switch (random.nextInt(3)) {
+            case 0:
+                emit("BEQ R" + source() + ", R" + source() + ", #" + offset, -1);
+                break;
+            case 1:
+                emit("BNE R" + source() + ", R" + source() + ", #" + offset, -1);
+                break;
+            default:
+                emit("BGTZ R" + source() + ", #" + offset, -1);
+        }
+    }
+
+    protected void instruction() throws IOException {
+        int pick = random.nextInt(100);
+        // The shares sum to 100, so the rest of the picks are mix.memory.
+        if (pick < mix.alu) alu();
+        else if (pick < mix.alu + mix.mulDiv) mulDiv();
+        else loadStore();
+    }
+
+    protected void alu() throws IOException {
+        int dest = destination();
+        switch (random.nextInt(9)) {
+            case 0:
+                emit("ADD R" + dest + ", R" + source() + ", R" + source(), dest);
+                break;
+            case 1:
+                emit("SUB R" + dest + ", R" + source() + ", R" + source(), dest);
+                break;
+            case 2:
+                emit("AND R" + dest + ", R" + source() + ", R" + source(), dest);
+                break;
+            case 3:
+                emit("OR R" + dest + ", R" + source() + ", R" + source(), dest);
+                break;
+            case 4:
+                emit("SRL R" + dest + ", R" + source() + ", R" + source(), dest);
+                break;
+            case 5:
+                emit("SRA R" + dest + ", R" + source() + ", R" + source(), dest);
+                break;
+            case 6:
+                emit("ADDI R" + dest + ", R" + source() + ", #" + (random.nextInt(2001) - 1000), dest);
+                break;
+            case 7:
+                emit("ANDI R" + dest + ", R" + source() + ", #" + random.nextInt(Short.MAX_VALUE + 1), dest);
+                break;
+            default:
+                emit("ORI R" + dest + ", R" + source() + ", #" + random.nextInt(Short.MAX_VALUE + 1), dest);
+        }
+    }
+
+    protected void mulDiv() throws IOException {
+        int dest;
+        switch (random.nextInt(4)) {
+            case 0:
+                emit("MULT R" + source() + ", R" + source(), -1);
+                break;
+            case 1:
+                emit("DIV R" + source() + ", R" + DIVISOR_REG, -1);
+                break;
+            case 2:
+                dest = destination();
+                emit("MFLO R" + dest, dest);
+                break;
+            default:
+                dest = destination();
+                emit("MFHI R" + dest, dest);
+        }
+    }
+
+    protected void loadStore() throws IOException {
+        int offset = 4 * random.nextInt(Math.min(dataWords, ADDRESSABLE_WORDS));
+        if (random.nextInt(100) < 60) {
+            int dest = destination();
+            emit("LW R" + dest + ", " + offset + "(R" + BASE_REG + ")", dest);
+        }
+        else {
+            emit("SW R" + source() + ", " + offset + "(R" + BASE_REG + ")", -1);
+        }
+    }
+
+    protected int destination() {
+        return 1 + random.nextInt(WORKING_REGS);
+    }
+
+    // A register written the chosen distance back, or any working register
+    // if that instruction wrote none.
+    protected int source() {
+        int back = count - minDistance - random.nextInt(maxDistance - minDistance + 1);
+        if (back >= PROLOGUE && written[back] > 0 && written[back] <= WORKING_REGS) {
+            return written[back];
+        }
+        return 1 + random.nextInt(WORKING_REGS);
+    }
+
+    // Takes key=value settings followed by an optional output path, which
+    // defaults to standard output.
+    public static void main(String[] args) {
+        String outputPath = MIPSsim.STDOUT_NAME;
+        if (args.length > 0 && args[args.length - 1].indexOf('=') < 0) {
+            outputPath = args[args.length - 1];
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        ProgramGenerator generator;
+        try {
+            generator = parse(args);
+            generator.validate();
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        try {
+            Writer writer = MIPSsim.newOutputWriter(outputPath);
+            try {
+                generator.generate(writer);
+            }
+            finally {
+                if (MIPSsim.STDOUT_NAME.equals(outputPath)) writer.flush();
+                else writer.close();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write program file: " + outputPath);
+        }
+    }
+}
+
 class Memory {
-    /* The actual contents of this memory object. */
-    protected int[] _words;
+    /* The image this memory was loaded from, starting at minAddr. A binary
+       image is a mapping of its file. Pages are copied from the image when
+       they are first touched, so the image itself never changes. */
+    protected IntBuffer _image;
+
+    /* The address space is 2^32 bytes of 4 KB pages, allocated on first use.
+       Reads of a page that has never been stored to and is outside the image
+       see ZERO_PAGE instead. Page numbers are the top 20 bits of an address
+       and index a two level page table. */
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_WORDS = 1 << (PAGE_SHIFT - 2);
+    static final int WORD_MASK = PAGE_WORDS - 1;
+    static final int DIRECTORY_SHIFT = 10;
+    static final int DIRECTORY_MASK = (1 << DIRECTORY_SHIFT) - 1;
+    static final int[] ZERO_PAGE = new int[PAGE_WORDS];
+    protected final int[][][] _pageTable = new int[1 << (32 - PAGE_SHIFT - DIRECTORY_SHIFT)][][];
+    protected int _pageCount;
+
+    /* A direct-mapped cache of page table lookups, indexed by the low bits of
+       the page number. */
+    static final int TLB_SIZE = 64;
+    static final int TLB_MASK = TLB_SIZE - 1;
+    protected final int[] _tlbTags = new int[TLB_SIZE];
+    protected final int[][] _tlbPages = new int[TLB_SIZE][];
 
     protected static final int _minAddr = 256;
     /** The minimum valid memory address. */
@@ -1146,19 +1568,158 @@ class Memory {
         return _dataStartAddr;
     }
 
+    protected int _entryAddr = _minAddr;
+    /** The address of the first instruction to execute. */
+    int entryAddr() {
+        return _entryAddr;
+    }
+
+    /* The decoded instructions of the code segment, filled in on first fetch. */
+    protected Instruction[] _decoded;
+
     protected static final int breakWord = 0x18000000;
 
+    // Binary images start with a header of five big-endian ints: MAGIC,
+    // VERSION, the entry address, the data start address and the number of
+    // words. The words follow, also big-endian.
+    static final int MAGIC = 0x4D495053;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 20;
+    // The most words an image can hold, so that one mapping covers them and
+    // every address fits in an int.
+    static final int MAX_WORDS = (Integer.MAX_VALUE - _minAddr) / 4;
+
     public Memory(List<String> lines) {
-        _words = new int[lines.size()];
-        _maxAddr = index2addr(_words.length);
-        for (int k = 0; k < _words.length; ++k) {
-            _words[k] = string2word(lines.get(k));
-            if (_words[k] == breakWord) _dataStartAddr = index2addr(k + 1);
-        }
+        this(IntBuffer.wrap(parseLines(lines)));
+    }
+
+    // The words of a text image, which starts at minAddr and whose data
+    // starts after its last BREAK word.
+    public Memory(IntBuffer words) {
+        this(words, _minAddr, findDataStart(words));
+    }
+
+    public Memory(IntBuffer words, int entryAddr, int dataStartAddr) {
+        _image = words;
+        Arrays.fill(_tlbTags, -1);
+        _maxAddr = index2addr(words.limit());
+        _entryAddr = entryAddr;
+        _dataStartAddr = dataStartAddr;
+        _decoded = new Instruction[Math.max(0, addr2index(_dataStartAddr))];
+    }
+
+    public Memory(int[] words) {
+        this(IntBuffer.wrap(words));
     }
 
     public Memory(String pathString) throws IOException, InvalidPathException {
-        this(Files.readAllLines(Paths.get(pathString)));
+        this(TextImageParser.parse(pathString));
+    }
+
+    protected static int[] parseLines(List<String> lines) {
+        int[] words = new int[lines.size()];
+        for (int k = 0; k < words.length; ++k) {
+            words[k] = string2word(lines.get(k));
+        }
+        return words;
+    }
+
+    protected static int findDataStart(IntBuffer words) {
+        for (int k = words.limit() - 1; k >= 0; --k) {
+            if (words.get(k) == breakWord) return index2addr(k + 1);
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a binary or text image, telling them apart by the binary header.
+     * Text images may be gzip compressed, and "-" reads one from standard
+     * input.
+     */
+    public static Memory read(String pathString) throws IOException, InvalidPathException {
+        if (TextImageParser.STDIN_NAME.equals(pathString)) return new Memory(pathString);
+        Path path = Paths.get(pathString);
+        if (isBinaryImage(path)) return readBinary(path);
+        return new Memory(pathString);
+    }
+
+    public static boolean isBinaryImage(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return !magic.hasRemaining() && MAGIC == magic.getInt(0);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    // Maps the words of a binary image without copying them. Pages are
+    // copied out of the image when first touched and it is never written, so
+    // a read-only mapping serves files we cannot write as well.
+    public static Memory readBinary(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0);
+            if (header.hasRemaining()) throw new IOException("Truncated image header: " + path);
+            header.flip();
+            if (MAGIC != header.getInt()) throw new IOException("Not a binary image: " + path);
+            int version = header.getInt();
+            if (VERSION != version) throw new IOException("Unsupported image version: " + version);
+            int entryAddr = header.getInt();
+            int dataStartAddr = header.getInt();
+            int count = header.getInt();
+            if (count < 0 || count > MAX_WORDS || HEADER_SIZE + 4L * count > channel.size()) {
+                throw new IOException("Truncated image: " + path);
+            }
+            int maxAddr = index2addr(count);
+            if (entryAddr < _minAddr || entryAddr >= maxAddr || 0 != entryAddr % 4
+                    || (0 != dataStartAddr && (dataStartAddr < _minAddr || dataStartAddr > maxAddr))) {
+                throw new IOException("Invalid image header: " + path);
+            }
+            IntBuffer words = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * count).asIntBuffer();
+            return new Memory(words, entryAddr, dataStartAddr);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    public void writeBinary(String pathString) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(pathString),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        );
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(MIPSsim.OUTPUT_BUFFER_SIZE);
+            int count = _image.limit();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(_entryAddr).putInt(_dataStartAddr).putInt(count);
+            for (int k = 0; k < count; ++k) {
+                if (!buffer.hasRemaining()) drain(channel, buffer);
+                buffer.putInt(fetch(index2addr(k)));
+            }
+            drain(channel, buffer);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    protected static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    // Writes the words in the text format. Only images whose entry is minAddr
+    // and whose data starts after their last BREAK read back the same.
+    public void writeText(Appendable out) throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        for (int k = 0, count = _image.limit(); k < count; ++k) {
+            out.append(word2string(fetch(index2addr(k)))).append(newLine);
+        }
     }
 
     public static int index2addr(int index) {
@@ -1188,68 +1749,510 @@ class Memory {
 
     public String toString() {
         String newLine = MIPSsim.LINE_SEP;
-        StringBuffer buff = new StringBuffer(33 * _words.length);
-        for (int k = 0; k < _words.length; ++k) {
-            buff.append(word2string(_words[k]) + newLine);
+        StringBuffer buff = new StringBuffer(33 * _image.limit());
+        for (int k = 0; k < _image.limit(); ++k) {
+            buff.append(word2string(fetch(index2addr(k))) + newLine);
         }
         return buff.toString();        
     }
 
-    protected String badIndexMsg() {
-        return String.format("must have %d <= addr <= %d", _minAddr, _maxAddr);
+    /* Counts the stores that changed a word of the data segment, so callers
+       can tell cheaply whether the data changed between two points. */
+    protected long _dataVersion;
+
+    long dataVersion() {
+        return _dataVersion;
+    }
+
+    /* While logging is on, the addresses of the data words changed since the
+       log was last cleared. An address changed twice is logged twice. */
+    protected int[] _changeLog;
+    protected int _changeCount;
+
+    void logChanges() {
+        if (null == _changeLog) _changeLog = new int[16];
+        _changeCount = 0;
     }
 
-    public int fetch(int addr) throws IllegalArgumentException {
-        try {
-            return _words[addr2index(addr)];
+    protected void logChange(int addr) {
+        if (_changeCount == _changeLog.length) _changeLog = Arrays.copyOf(_changeLog, 2 * _changeCount);
+        _changeLog[_changeCount++] = addr;
+    }
+
+    int[] changeLog() {
+        return _changeLog;
+    }
+
+    int changeCount() {
+        return _changeCount;
+    }
+
+    void clearChangeLog() {
+        _changeCount = 0;
+    }
+
+    /** The number of pages allocated so far. */
+    public int pageCount() {
+        return _pageCount;
+    }
+
+    /* A hash of the image words, so a checkpoint can check that it is restored
+       over the image it was taken from. Computed on first use. */
+    protected long _imageHash;
+    protected boolean _imageHashed;
+
+    long imageHash() {
+        if (!_imageHashed) {
+            long hash = 0xCBF29CE484222325L;
+            for (int k = 0, count = _image.limit(); k < count; ++k) {
+                hash = (hash ^ _image.get(k)) * 0x100000001B3L;
+            }
+            _imageHash = hash;
+            _imageHashed = true;
+        }
+        return _imageHash;
+    }
+
+    // The word at absolute word index first + offset as a new memory over the
+    // same image would read it.
+    protected int original(long first, int offset) {
+        long index = first + offset - imageFirstWord;
+        if (index < 0 || index >= _image.limit()) return 0;
+        return _image.get((int)index);
+    }
+
+    // Writes the words that differ from the image, or from zero outside it.
+    // Each changed page is written as its number, the number of changed
+    // words, and the offset and value of each. A page number of -1 ends them.
+    void writeChanges(DataOutputStream out) throws IOException {
+        int[][] directory;
+        int[] words;
+        long first;
+        int changed;
+        for (int d = 0; d < _pageTable.length; ++d) {
+            directory = _pageTable[d];
+            if (null == directory) continue;
+            for (int p = 0; p < directory.length; ++p) {
+                words = directory[p];
+                if (null == words) continue;
+                first = (long)(d << DIRECTORY_SHIFT | p) << (PAGE_SHIFT - 2);
+                changed = 0;
+                for (int k = 0; k < PAGE_WORDS; ++k) {
+                    if (words[k] != original(first, k)) ++changed;
+                }
+                if (0 == changed) continue;
+                out.writeInt(d << DIRECTORY_SHIFT | p);
+                out.writeInt(changed);
+                for (int k = 0; k < PAGE_WORDS; ++k) {
+                    if (words[k] != original(first, k)) {
+                        out.writeShort(k);
+                        out.writeInt(words[k]);
+                    }
+                }
+            }
+        }
+        out.writeInt(-1);
+    }
+
+    // Applies changes written by writeChanges(). Code words are written too,
+    // since a checkpoint only holds words its own run could change.
+    void readChanges(DataInputStream in) throws IOException {
+        int page;
+        int count;
+        int offset;
+        int[] words;
+        while (-1 != (page = in.readInt())) {
+            count = in.readInt();
+            if (page < 0 || page >= 1 << (32 - PAGE_SHIFT) || count < 0 || count > PAGE_WORDS) {
+                throw new IOException("Invalid page in checkpoint: " + page);
+            }
+            words = page(page << PAGE_SHIFT);
+            if (ZERO_PAGE == words) words = allocateStored(page);
+            for (int k = 0; k < count; ++k) {
+                offset = in.readUnsignedShort();
+                if (offset >= PAGE_WORDS) throw new IOException("Invalid word in checkpoint: " + offset);
+                words[offset] = in.readInt();
+                invalidate(page << PAGE_SHIFT | offset << 2);
+            }
+        }
+    }
+
+    // A memory over the same image with its own copy of every page this one
+    // has allocated, so it reads the same words and the two change
+    // independently.
+    public Memory copy() {
+        Memory copy = new Memory(_image, _entryAddr, _dataStartAddr);
+        int[][] directory, copied;
+        for (int d = 0; d < _pageTable.length; ++d) {
+            directory = _pageTable[d];
+            if (null == directory) continue;
+            copied = new int[directory.length][];
+            for (int p = 0; p < directory.length; ++p) {
+                if (null != directory[p]) copied[p] = directory[p].clone();
+            }
+            copy._pageTable[d] = copied;
+        }
+        copy._pageCount = _pageCount;
+        return copy;
+    }
+
+    // Returns the page holding addr, which is ZERO_PAGE if it has not been
+    // allocated and does not overlap the image. This is kept small so the
+    // TLB hit inlines into fetch() and store().
+    protected int[] page(int addr) {
+        int page = addr >>> PAGE_SHIFT;
+        int slot = page & TLB_MASK;
+        if (page == _tlbTags[slot]) return _tlbPages[slot];
+        return miss(page, slot);
+    }
+
+    protected int[] miss(int page, int slot) {
+        int[][] directory = _pageTable[page >>> DIRECTORY_SHIFT];
+        int[] words = null == directory ? null : directory[page & DIRECTORY_MASK];
+        if (null == words) words = overlapsImage(page) ? allocate(page) : ZERO_PAGE;
+        _tlbTags[slot] = page;
+        _tlbPages[slot] = words;
+        return words;
+    }
+
+    // The absolute word index of the first image word, counting words from
+    // address 0.
+    protected static final int imageFirstWord = _minAddr >>> 2;
+
+    protected boolean overlapsImage(int page) {
+        long first = (long)page << (PAGE_SHIFT - 2);
+        return first + PAGE_WORDS > imageFirstWord && first < imageFirstWord + _image.limit();
+    }
+
+    protected int[] allocate(int page) {
+        int[] words = new int[PAGE_WORDS];
+        long first = (long)page << (PAGE_SHIFT - 2);
+        long start = Math.max(first, imageFirstWord);
+        long end = Math.min(first + PAGE_WORDS, imageFirstWord + (long)_image.limit());
+        if (start < end) {
+            IntBuffer image = _image.duplicate();
+            image.position((int)(start - imageFirstWord));
+            image.get(words, (int)(start - first), (int)(end - start));
+        }
+        int[][] directory = _pageTable[page >>> DIRECTORY_SHIFT];
+        if (null == directory) {
+            directory = new int[DIRECTORY_MASK + 1][];
+            _pageTable[page >>> DIRECTORY_SHIFT] = directory;
+        }
+        directory[page & DIRECTORY_MASK] = words;
+        ++_pageCount;
+        return words;
+    }
+
+    // Allocates a page for a store to a page that reads as ZERO_PAGE, which
+    // page() has just put in the TLB.
+    protected int[] allocateStored(int page) {
+        int[] words = allocate(page);
+        _tlbPages[page & TLB_MASK] = words;
+        return words;
+    }
+
+    // Every 32 bit address can be read. Addresses are rounded down to a word.
+    public int fetch(int addr) {
+        return page(addr)[(addr >>> 2) & WORD_MASK];
+    }
+
+    /**
+     * Returns the instruction at addr. Instructions in the code segment are
+     * decoded once and the same object is returned on every later fetch, so
+     * callers must not modify it.
+     */
+    public Instruction fetchInstruction(int addr) throws IllegalArgumentException {
+        int index = addr2index(addr);
+        if (index < 0 || index >= _decoded.length) {
+            return Instruction.decode(addr, fetch(addr));
         }
-        catch (IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException(badIndexMsg());
+        Instruction inst = _decoded[index];
+        if (null == inst) {
+            inst = Instruction.decode(addr, fetch(addr));
+            _decoded[index] = inst;
         }
+        return inst;
+    }
+
+    /** Drops the decoded instruction at addr so the next fetch decodes the word again. */
+    public void invalidate(int addr) {
+        int index = addr2index(addr);
+        if (index >= 0 && index < _decoded.length) _decoded[index] = null;
     }
 
     public void store(int addr, int word) throws IllegalArgumentException {
-        if (addr < _dataStartAddr) {
+        if (addr >= _minAddr && addr < _dataStartAddr) {
             throw new IllegalArgumentException("Segmentation Fault: cannot store data in the code segment.");
         }
-        try {
-            _words[addr2index(addr)] = word;
-        }
-        catch (IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException(badIndexMsg());
+        int[] words = page(addr);
+        if (ZERO_PAGE == words) words = allocateStored(addr >>> PAGE_SHIFT);
+        int index = (addr >>> 2) & WORD_MASK;
+        if (words[index] != word) {
+            words[index] = word;
+            if (addr >= _dataStartAddr && addr < _maxAddr) {
+                ++_dataVersion;
+                if (null != _changeLog) logChange(addr);
+            }
         }
+        invalidate(addr);
     }
 
     public String disassemble() {
         String newLine = MIPSsim.LINE_SEP;
-        StringBuilder builder = new StringBuilder(64 * _words.length);
+        StringBuilder builder = new StringBuilder(64 * _image.limit());
         int addr;
         for (addr = _minAddr; addr < _dataStartAddr; addr += 4) {
-            builder.append(Instruction.decode(addr, _words[addr2index(addr)]).toString() + newLine);
+            builder.append(Instruction.decode(addr, fetch(addr)).toString() + newLine);
         }
-        int index;
+        int word;
         for (; addr < _maxAddr; addr += 4) {
-            index = addr2index(addr);
+            word = fetch(addr);
             builder.append(String.format("%s\t%d\t%d%n",
-                word2string(_words[index]), addr, _words[index]
+                word2string(word), addr, word
             ));
         }
         return builder.toString().trim();
     }
 }
 
-class RegisterFile {
-    static final int LO_INDEX = 32;
-    static final int HI_INDEX = 33;
-    // This must not be a valid index for the registers array.
-    static final int LO_HI_INDEX = 255;
+// Parses text images from bytes straight into words. A line whose first 32
+// bytes are '0' and '1' digits is converted eight digits at a time: the
+// digits are read as a long, checked, and the low bit of each byte is
+// gathered into one byte with a multiply. Other lines fall back to the
+// rules of string2word, so the words match what Memory(List<String>) reads.
+//
+// Plain files are mapped, and large ones are split at line boundaries into
+// chunks parsed in parallel on the common fork-join pool. Gzip files and
+// standard input are parsed as they stream in.
+class TextImageParser {
+    static final String STDIN_NAME = "-";
+    static final long DIGIT_MASK = 0xF0F0F0F0F0F0F0F0L | 0x0E0E0E0E0E0E0E0EL;
+    static final long ZEROS = 0x3030303030303030L;
+    static final long LOW_BITS = 0x0101010101010101L;
+    // Moves the low bit of byte k, counted from the most significant, to bit
+    // 63 - k.
+    static final long GATHER = 0x0102040810204080L;
+    // Files at least this large are parsed in parallel, in chunks of about
+    // CHUNK_SIZE bytes.
+    static final int PARALLEL_THRESHOLD = 1 << 22;
+    static final int CHUNK_SIZE = 1 << 20;
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+    // The length of a line with its newline.
+    static final int LINE_LENGTH = 33;
+
+    protected int[] words;
+    protected int count;
+
+    public TextImageParser(int capacity) {
+        words = new int[Math.max(16, capacity)];
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(words, count);
+    }
+
+    protected void add(int word) {
+        if (count == words.length) words = Arrays.copyOf(words, 2 * count);
+        words[count++] = word;
+    }
+
+    // The value of eight '0' and '1' digits, or -1 if any byte is not one.
+    static int digits8(long digits) {
+        if (ZEROS != (digits & DIGIT_MASK)) return -1;
+        return (int)(((digits & LOW_BITS) * GATHER) >>> 56);
+    }
+
+    static boolean isTerminator(byte b) {
+        return '\n' == b || '\r' == b;
+    }
+
+    // Parses the lines in [start, end) of in. A final line with no terminator
+    // is only parsed if last is set, since more of it may follow. Returns the
+    // position after the last line parsed.
+    public int parse(ByteBuffer in, int start, int end, boolean last) throws IOException {
+        int p = start, e, a, b, c, d, word, length;
+        while (p < end) {
+            // The length of a line of exactly 32 characters, or 0.
+            length = 0;
+            if (p + LINE_LENGTH <= end) {
+                if ('\n' == in.get(p + 32)) length = LINE_LENGTH;
+                else if ('\r' == in.get(p + 32) && p + LINE_LENGTH < end && '\n' == in.get(p + 33)) length = LINE_LENGTH + 1;
+            }
+            if (0 != length) {
+                a = digits8(in.getLong(p));
+                b = digits8(in.getLong(p + 8));
+                c = digits8(in.getLong(p + 16));
+                d = digits8(in.getLong(p + 24));
+                if ((a | b | c | d) >= 0) {
+                    add(a << 24 | b << 16 | c << 8 | d);
+                    p += length;
+                    continue;
+                }
+            }
+            e = p;
+            while (e < end && !isTerminator(in.get(e))) ++e;
+            // Wait for the rest of the line, including the '\n' of a "\r\n".
+            if (!last && (e == end || (e + 1 == end && '\r' == in.get(e)))) break;
+            if (e - p < 32) throw new IOException("Line shorter than 32 characters at byte " + p);
+            word = 0;
+            for (int k = 0; k < 32; ++k) {
+                if ('1' == in.get(p + k)) word |= 1 << (31 - k);
+            }
+            add(word);
+            p = e;
+            if (p < end && '\r' == in.get(p)) ++p;
+            if (p < end && '\n' == in.get(p)) ++p;
+        }
+        return p;
+    }
 
-    final static int numGprs = 32;
-    final static int numRegisters = numGprs + 2;
-    private int[] registers = new int[numRegisters];
-    // The await array indicates that a register is awaiting the output of
-    // an issued instruction.
-    private boolean[] registersAwait = new boolean[numRegisters];
+    /** Parses a text image from a file, or from standard input if pathString is "-". */
+    public static int[] parse(String pathString) throws IOException {
+        if (STDIN_NAME.equals(pathString)) return parse(System.in);
+        Path path = Paths.get(pathString);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            if (!magic.hasRemaining() && isGzip(magic.get(0), magic.get(1))) {
+                return parse(Files.newInputStream(path));
+            }
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Image too large to map: " + path);
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size >= PARALLEL_THRESHOLD) return parseParallel(in);
+            TextImageParser parser = new TextImageParser((int)(size / LINE_LENGTH) + 1);
+            parser.parse(in, 0, in.limit(), true);
+            return parser.toArray();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    static boolean isGzip(byte first, byte second) {
+        return (byte)0x1f == first && (byte)0x8b == second;
+    }
+
+    // Parses a stream, which may be gzip compressed. The stream is closed.
+    public static int[] parse(InputStream stream) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream, STREAM_BUFFER_SIZE);
+        InputStream in = buffered;
+        try {
+            buffered.mark(2);
+            int first = buffered.read();
+            int second = buffered.read();
+            buffered.reset();
+            if (isGzip((byte)first, (byte)second)) {
+                in = new GZIPInputStream(buffered, STREAM_BUFFER_SIZE);
+            }
+            TextImageParser parser = new TextImageParser(STREAM_BUFFER_SIZE / LINE_LENGTH);
+            byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int length = 0, read, used;
+            while (true) {
+                // Make room for lines longer than the buffer.
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+                    buffer = ByteBuffer.wrap(bytes);
+                }
+                read = in.read(bytes, length, bytes.length - length);
+                if (read < 0) break;
+                length += read;
+                used = parser.parse(buffer, 0, length, false);
+                System.arraycopy(bytes, used, bytes, 0, length - used);
+                length -= used;
+            }
+            parser.parse(buffer, 0, length, true);
+            return parser.toArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    protected static int[] parseParallel(ByteBuffer in) throws IOException {
+        int size = in.limit();
+        List<Chunk> chunks = new ArrayList<Chunk>(size / CHUNK_SIZE + 1);
+        int start = 0, end;
+        while (start < size) {
+            // End each chunk after a newline, so no line is split.
+            end = (int)Math.min((long)start + CHUNK_SIZE, size);
+            while (end < size && '\n' != in.get(end - 1)) ++end;
+            chunks.add(new Chunk(in, start, end));
+            start = end;
+        }
+        ForkJoinTask.invokeAll(chunks);
+        int total = 0;
+        for (Chunk chunk : chunks) {
+            if (null != chunk.error) throw chunk.error;
+            total += chunk.parser.count;
+        }
+        int[] words = new int[total];
+        int offset = 0;
+        for (Chunk chunk : chunks) {
+            System.arraycopy(chunk.parser.words, 0, words, offset, chunk.parser.count);
+            offset += chunk.parser.count;
+        }
+        return words;
+    }
+
+    static class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final ByteBuffer in;
+        final int start;
+        final int end;
+        final TextImageParser parser;
+        IOException error;
+
+        Chunk(ByteBuffer in, int start, int end) {
+            this.in = in;
+            this.start = start;
+            this.end = end;
+            parser = new TextImageParser((end - start) / LINE_LENGTH + 1);
+        }
+
+        // Absolute reads leave the shared buffer unchanged, so the chunks
+        // can read it at once.
+        protected void compute() {
+            try {
+                parser.parse(in, start, end, true);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+}
+
+class RegisterFile {
+    static final int LO_INDEX = 32;
+    static final int HI_INDEX = 33;
+    // This must not be a valid index for the registers array.
+    static final int LO_HI_INDEX = 255;
+
+    final static int numGprs = 32;
+    final static int numRegisters = numGprs + 2;
+    private int[] registers = new int[numRegisters];
+    // A bit for each register awaiting the output of an issued instruction.
+    private long awaitMask;
+    // A bit for each register whose value was written since the last sync.
+    private long dirty;
+
+    // The bit for a register index: the gprs are bits 0-31, LO and HI are
+    // bits 32 and 33, and LO_HI_INDEX sets both. The index -1 has no bits.
+    static long mask(int index) {
+        if (-1 == index) return 0;
+        if (LO_HI_INDEX == index) return 1L << LO_INDEX | 1L << HI_INDEX;
+        return 1L << index;
+    }
+
+    // The backing array of register values, indexed like get().
+    int[] values() {
+        return registers;
+    }
 
     public int get(int index) {
         if (-1 == index) return 0;
@@ -1267,65 +2270,477 @@ class RegisterFile {
     public void set(int index, int val) {
         if (-1 == index) return;
         registers[index] = val;
-        registersAwait[index] = false;
+        awaitMask &= ~(1L << index);
+        dirty |= 1L << index;
+    }
+
+    long awaitMask() {
+        return awaitMask;
     }
 
     public boolean getAwaiting(int index) {
-        if (-1 == index) {
-            return false;
-        }
-        else if (LO_HI_INDEX == index) {
-            return registersAwait[LO_INDEX] || registersAwait[HI_INDEX];
-        }
-        return registersAwait[index];
+        return 0 != (awaitMask & mask(index));
     }
 
     public boolean getAwaiting(Instruction inst) {
-        return getAwaiting(inst.dest()) || getAwaiting(inst.src1())
-            || getAwaiting(inst.src2());
+        return 0 != (awaitMask & (inst.srcMask() | inst.destMask()));
     }
 
     public void setAwaiting(int index) {
-        if (-1 == index) {
+        awaitMask |= mask(index);
+    }
+
+    // Replaces every value and await bit, as when restoring a checkpoint.
+    void load(int[] values, long awaitMask) {
+        System.arraycopy(values, 0, registers, 0, numRegisters);
+        this.awaitMask = awaitMask;
+        dirty = 0;
+    }
+
+    public static void copy(RegisterFile dest, RegisterFile source) {
+        System.arraycopy(source.registers, 0, dest.registers, 0, numRegisters);
+        dest.awaitMask = source.awaitMask;
+        dest.dirty = 0;
+        source.dirty = 0;
+    }
+
+    // Copies the registers written in source since the last sync to dest,
+    // which must have matched source before those writes.
+    public static void sync(RegisterFile dest, RegisterFile source) {
+        long dirty = source.dirty;
+        int k;
+        while (0 != dirty) {
+            k = Long.numberOfTrailingZeros(dirty);
+            dest.registers[k] = source.registers[k];
+            dirty &= dirty - 1;
+        }
+        dest.awaitMask = source.awaitMask;
+        source.dirty = 0;
+    }
+}
+
+// A ring buffer of in-flight slots. The array length is a power of two so
+// positions wrap with a mask, and the head and tail counters only move
+// forward, so pushing and popping never scan or shift entries.
+class SlotRing {
+    // Marks a position whose instruction has been removed, or an empty latch.
+    static final int EMPTY = -1;
+
+    protected final int[] slots;
+    protected final int mask;
+    protected final int capacity;
+    protected int head;
+    protected int tail;
+    // The number of positions set to EMPTY by remove().
+    protected int removed;
+
+    public SlotRing(int capacity) {
+        this.capacity = capacity;
+        int length = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new int[length];
+        mask = length - 1;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return tail - head;
+    }
+
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    public boolean isFull() {
+        return tail - head >= capacity;
+    }
+
+    /** The slot at position, counted from the oldest entry. */
+    public int get(int position) {
+        return slots[(head + position) & mask];
+    }
+
+    public void push(int slot) {
+        slots[tail++ & mask] = slot;
+    }
+
+    public int peek() {
+        return slots[head & mask];
+    }
+
+    public int pop() {
+        return slots[head++ & mask];
+    }
+
+    // Marks the entry at position as removed. The entries after it keep their
+    // positions until compact() is called.
+    public void remove(int position) {
+        slots[(head + position) & mask] = EMPTY;
+        ++removed;
+    }
+
+    // Closes the gaps left by remove(), keeping the entries in order. Returns
+    // false if there were no gaps.
+    public boolean compact() {
+        if (0 == removed) return false;
+        int write = head;
+        int slot;
+        for (int read = head; read != tail; ++read) {
+            slot = slots[read & mask];
+            if (EMPTY != slot) slots[write++ & mask] = slot;
+        }
+        tail = write;
+        removed = 0;
+        return true;
+    }
+
+    public void clear() {
+        head = 0;
+        tail = 0;
+        removed = 0;
+    }
+
+    public static void copy(SlotRing dest, SlotRing source) {
+        dest.head = source.head;
+        dest.tail = source.tail;
+        dest.removed = source.removed;
+        for (int k = source.head; k != source.tail; ++k) {
+            dest.slots[k & dest.mask] = source.slots[k & source.mask];
+        }
+    }
+}
+
+// The instructions in flight in the pipeline, stored by column and indexed by
+// slot. A slot is taken when an instruction is fetched into Buf1 and released
+// when the instruction leaves the pipeline. Slot values are only written by
+// the stage holding the instruction, so both processor states share them.
+class InFlightTable {
+    Instruction[] inst;
+    int[] src1val;
+    int[] src2val;
+    // The value for the destination register, the address of a load or
+    // store, or the value for lo of a MULT or DIV.
+    int[] result;
+    int[] hi;
+    // The data word of a load. Set by the MEM unit.
+    int[] data;
+
+    protected int[] free;
+    protected int freeCount;
+
+    public InFlightTable(int size) {
+        inst = new Instruction[size];
+        src1val = new int[size];
+        src2val = new int[size];
+        result = new int[size];
+        hi = new int[size];
+        data = new int[size];
+        free = new int[size];
+        clear();
+    }
+
+    public int size() {
+        return inst.length;
+    }
+
+    public int allocate(Instruction instruction) throws IllegalStateException {
+        if (0 == freeCount) {
+            throw new IllegalStateException("No free slot for an in-flight instruction.");
+        }
+        int slot = free[--freeCount];
+        inst[slot] = instruction;
+        return slot;
+    }
+
+    public void release(int slot) {
+        inst[slot] = null;
+        free[freeCount++] = slot;
+    }
+
+    public void clear() {
+        // Hand out the low slots first.
+        for (int k = 0; k < free.length; ++k) {
+            free[k] = free.length - 1 - k;
+            inst[k] = null;
+        }
+        freeCount = free.length;
+    }
+}
+
+// The shape of the pipeline: the depths of Buf1-Buf5, the words fetched
+// per cycle, the most instructions issued to each of Buf2-Buf5 per cycle,
+// and the latency of each unit and whether it is pipelined. The defaults
+// are the machine the snapshots were designed for.
+//
+// A unit with latency n holds an instruction for n cycles before its
+// output latch. The cycles beyond the first are hidden stages that the
+// snapshots do not show, except that MUL shows its first two stages as
+// Buf8 and Buf11, or only Buf8 with a latency of 2. A unit that is not
+// pipelined takes no new instruction while one is in its stages. MEM is
+// fed from the Buf6 latch, which cannot hold back, so it is always
+// pipelined.
+//
+// The hazard checks are those of the default machine. Stores still read
+// their data register as they enter MEM, and deeper buffers and longer
+// latencies give later instructions more time to write it first.
+//
+// Settings are key=value strings, as on the command line or one per line
+// in a configuration file, where blank lines and lines starting with #
+// are skipped.
+class PipelineConfig {
+    // The units, numbered like the buffers Buf2-Buf5 that feed them, then
+    // MEM.
+    static final int ALU2 = 0;
+    static final int DIV = 1;
+    static final int MUL = 2;
+    static final int ALU1 = 3;
+    static final int MEM = 4;
+    static final int UNITS = 5;
+    static final int QUEUES = 4;
+    static final String[] UNIT_NAMES = {"alu2", "div", "mul", "alu1", "mem"};
+    // The stages of MUL shown as Buf8 and Buf11.
+    static final int MUL_SHOWN_STAGES = 2;
+    // The latches Buf6-Buf12.
+    static final int LATCHES = 7;
+    static final int MAX_DEPTH = 1024;
+    static final int MAX_LATENCY = 64;
+
+    int buf1Depth = 8;
+    // The depths of Buf2-Buf5, indexed by unit.
+    final int[] queueDepth = {2, 2, 2, 2};
+    int fetchWidth = 4;
+    // The most instructions issued to each of Buf2-Buf5 in a cycle, or 0 for
+    // as many as fit.
+    final int[] issueWidth = {0, 0, 0, 0};
+    final int[] latency = {1, 1, 3, 1, 1};
+    final boolean[] pipelined = {true, true, true, true, true};
+
+    public static PipelineConfig parse(String[] settings) throws IllegalArgumentException {
+        PipelineConfig config = new PipelineConfig();
+        for (String setting : settings) config.set(setting);
+        config.validate();
+        return config;
+    }
+
+    // Reads the settings in the file at pathString.
+    public static PipelineConfig read(String pathString) throws IOException, IllegalArgumentException {
+        List<String> settings = new ArrayList<String>();
+        for (String line : Files.readAllLines(Paths.get(pathString), MIPSsim.CHARSET)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            settings.add(line);
+        }
+        return parse(settings.toArray(new String[settings.size()]));
+    }
+
+    public PipelineConfig copy() {
+        PipelineConfig config = new PipelineConfig();
+        config.buf1Depth = buf1Depth;
+        System.arraycopy(queueDepth, 0, config.queueDepth, 0, QUEUES);
+        config.fetchWidth = fetchWidth;
+        System.arraycopy(issueWidth, 0, config.issueWidth, 0, QUEUES);
+        System.arraycopy(latency, 0, config.latency, 0, UNITS);
+        System.arraycopy(pipelined, 0, config.pipelined, 0, UNITS);
+        return config;
+    }
+
+    public void set(String setting) throws IllegalArgumentException {
+        int equals = setting.indexOf('=');
+        if (equals < 0) throw new IllegalArgumentException("Expected key=value: " + setting);
+        String key = setting.substring(0, equals).trim();
+        String value = setting.substring(equals + 1).trim();
+        try {
+            set(key, value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+    }
+
+    public void set(String key, String value) throws IllegalArgumentException {
+        if (key.equals("buf1Depth")) {
+            buf1Depth = Integer.parseInt(value);
             return;
         }
-        else if (LO_HI_INDEX == index) {
-            registersAwait[LO_INDEX] = true;
-            registersAwait[HI_INDEX] = true;
+        if (key.equals("fetchWidth")) {
+            fetchWidth = Integer.parseInt(value);
             return;
         }
-        registersAwait[index] = true;
+        for (int k = 0; k < QUEUES; ++k) {
+            if (key.equals("buf" + (k + 2) + "Depth")) {
+                queueDepth[k] = Integer.parseInt(value);
+                return;
+            }
+            if (key.equals("buf" + (k + 2) + "IssueWidth")) {
+                issueWidth[k] = Integer.parseInt(value);
+                return;
+            }
+        }
+        for (int k = 0; k < UNITS; ++k) {
+            if (key.equals(UNIT_NAMES[k] + "Latency")) {
+                latency[k] = Integer.parseInt(value);
+                return;
+            }
+            if (key.equals(UNIT_NAMES[k] + "Pipelined")) {
+                if (!value.equals("true") && !value.equals("false")) {
+                    throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+                }
+                pipelined[k] = Boolean.parseBoolean(value);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown setting: " + key);
     }
 
-    public static void copy(RegisterFile dest, RegisterFile source) {
-        for (int k = 0; k < numRegisters; ++k) {
-            dest.registers[k] = source.registers[k];
-            dest.registersAwait[k] = source.registersAwait[k];
+    public void validate() throws IllegalArgumentException {
+        if (buf1Depth < 1 || buf1Depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("buf1Depth out of range: " + buf1Depth);
         }
+        if (fetchWidth < 1 || fetchWidth > MAX_DEPTH) {
+            throw new IllegalArgumentException("fetchWidth out of range: " + fetchWidth);
+        }
+        for (int k = 0; k < QUEUES; ++k) {
+            if (queueDepth[k] < 1 || queueDepth[k] > MAX_DEPTH) {
+                throw new IllegalArgumentException("buf" + (k + 2) + "Depth out of range: " + queueDepth[k]);
+            }
+            if (issueWidth[k] < 0) {
+                throw new IllegalArgumentException("buf" + (k + 2) + "IssueWidth out of range: " + issueWidth[k]);
+            }
+        }
+        for (int k = 0; k < UNITS; ++k) {
+            if (latency[k] < 1 || latency[k] > MAX_LATENCY) {
+                throw new IllegalArgumentException(UNIT_NAMES[k] + "Latency out of range: " + latency[k]);
+            }
+        }
+        if (!pipelined[MEM]) throw new IllegalArgumentException("MEM is always pipelined.");
+    }
+
+    // The stages of unit that no latch shows.
+    public int hiddenStages(int unit) {
+        if (MUL == unit) return Math.max(0, latency[unit] - 1 - MUL_SHOWN_STAGES);
+        return latency[unit] - 1;
+    }
+
+    // Enough in-flight slots for every buffer, latch and stage to be full
+    // at once.
+    public int slots() {
+        int slots = buf1Depth + LATCHES;
+        for (int k = 0; k < QUEUES; ++k) slots += queueDepth[k];
+        for (int k = 0; k < UNITS; ++k) slots += hiddenStages(k);
+        return slots;
+    }
+
+    // Every setting as key=value, in a fixed order.
+    public List<String> settings() {
+        List<String> settings = new ArrayList<String>();
+        settings.add("buf1Depth=" + buf1Depth);
+        for (int k = 0; k < QUEUES; ++k) settings.add("buf" + (k + 2) + "Depth=" + queueDepth[k]);
+        settings.add("fetchWidth=" + fetchWidth);
+        for (int k = 0; k < QUEUES; ++k) settings.add("buf" + (k + 2) + "IssueWidth=" + issueWidth[k]);
+        for (int k = 0; k < UNITS; ++k) settings.add(UNIT_NAMES[k] + "Latency=" + latency[k]);
+        for (int k = 0; k < UNITS; ++k) settings.add(UNIT_NAMES[k] + "Pipelined=" + pipelined[k]);
+        return settings;
+    }
+
+    public boolean isDefault() {
+        return equals(new PipelineConfig());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PipelineConfig && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", settings());
     }
 }
 
 class ProcessorState {
+    // Enough slots for every buffer and latch of the default pipeline to be
+    // full at once.
+    static final int SLOTS = 8 + 4 * 2 + 7;
+
     int pc = 256;
     RegisterFile regFile = new RegisterFile();
-
-    Instruction[] Buf1 = new Instruction[8];
-    InstLoadStore[] Buf2 = new InstLoadStore[2];
-    InstCat4[] Buf3 = new InstCat4[2];
-    InstCat4[] Buf4 = new InstCat4[2];
-    Instruction[] Buf5 = new Instruction[2];
-
-    InstLoadStore Buf6;
-    InstCat4 Buf7;
-    InstCat4 Buf8;
-    Instruction Buf9;
-    InstLW Buf10;
-    InstCat4 Buf11;
-    InstCat4 Buf12;
+    final InFlightTable inFlight;
+
+    final SlotRing Buf1;
+    final SlotRing Buf2;
+    final SlotRing Buf3;
+    final SlotRing Buf4;
+    final SlotRing Buf5;
+
+    // The slots held in the latches between stages.
+    int Buf6 = SlotRing.EMPTY;
+    int Buf7 = SlotRing.EMPTY;
+    int Buf8 = SlotRing.EMPTY;
+    int Buf9 = SlotRing.EMPTY;
+    int Buf10 = SlotRing.EMPTY;
+    int Buf11 = SlotRing.EMPTY;
+    int Buf12 = SlotRing.EMPTY;
+    // The slots in the hidden stages of each unit, the next stage to leave
+    // last, and whether any unit has hidden stages.
+    final int[][] stages = new int[PipelineConfig.UNITS][];
+    final boolean hasStages;
 
     InstCat1 waitingBranch;
     InstCat1 executedBranch;
 
+    // The registers written by the instructions in Buf1, as a mask.
+    long buf1Writes;
+
+    static final int BUF1 = 1;
+    static final int BUF2 = 1 << 1;
+    static final int BUF3 = 1 << 2;
+    static final int BUF4 = 1 << 3;
+    static final int BUF5 = 1 << 4;
+    // A bit for each of Buf1-Buf5 written since the last sync.
+    int dirtyBuffers;
+
+    public ProcessorState(InFlightTable inFlight) {
+        this(inFlight, new PipelineConfig());
+    }
+
+    public ProcessorState(InFlightTable inFlight, PipelineConfig config) {
+        this.inFlight = inFlight;
+        Buf1 = new SlotRing(config.buf1Depth);
+        Buf2 = new SlotRing(config.queueDepth[PipelineConfig.ALU2]);
+        Buf3 = new SlotRing(config.queueDepth[PipelineConfig.DIV]);
+        Buf4 = new SlotRing(config.queueDepth[PipelineConfig.MUL]);
+        Buf5 = new SlotRing(config.queueDepth[PipelineConfig.ALU1]);
+        boolean hasStages = false;
+        for (int k = 0; k < PipelineConfig.UNITS; ++k) {
+            stages[k] = new int[config.hiddenStages(k)];
+            Arrays.fill(stages[k], SlotRing.EMPTY);
+            if (stages[k].length > 0) hasStages = true;
+        }
+        this.hasStages = hasStages;
+    }
+
+    // Puts a newly fetched slot at the end of Buf1.
+    public void pushBuf1(int slot) {
+        Buf1.push(slot);
+        buf1Writes |= inFlight.inst[slot].destMask();
+        dirtyBuffers |= BUF1;
+    }
+
+    protected void updateBuf1Writes() {
+        long writes = 0;
+        for (int k = 0, end = Buf1.size(); k < end; ++k) {
+            writes |= inFlight.inst[Buf1.get(k)].destMask();
+        }
+        buf1Writes = writes;
+    }
+
     // consolidate all the non-null entries of array so they are contiguous at
     // the beginning of the array.
     public static void consolidate(Object[] array) {
@@ -1340,25 +2755,29 @@ class ProcessorState {
         }
     }
 
-    public static void copyRefs(Object[] dest, Object[] source) {
-        int end;
-        if (source.length < dest.length) end = source.length;
-        else end = dest.length;
-        consolidate(source);
-        for (int k = 0; k < end; ++k) {
-            dest[k] = source[k];
-        }
+    public static void copy(ProcessorState dest, ProcessorState source) {
+        source.dirtyBuffers = -1;
+        sync(dest, source);
+        RegisterFile.copy(dest.regFile, source.regFile);
     }
 
-    public static void copy(ProcessorState dest, ProcessorState source) {
+    // Brings dest up to date with source, which must have matched dest at the
+    // start of the cycle. Only the registers and buffers written during the
+    // cycle are copied.
+    public static void sync(ProcessorState dest, ProcessorState source) {
         dest.pc = source.pc;
-        RegisterFile.copy(dest.regFile, source.regFile);
+        RegisterFile.sync(dest.regFile, source.regFile);
 
-        copyRefs(dest.Buf1, source.Buf1);
-        copyRefs(dest.Buf2, source.Buf2);
-        copyRefs(dest.Buf3, source.Buf3);
-        copyRefs(dest.Buf4, source.Buf4);
-        copyRefs(dest.Buf5, source.Buf5);
+        int dirty = source.dirtyBuffers;
+        if (0 != (dirty & BUF1)) {
+            if (source.Buf1.compact()) source.updateBuf1Writes();
+            SlotRing.copy(dest.Buf1, source.Buf1);
+        }
+        if (0 != (dirty & BUF2)) SlotRing.copy(dest.Buf2, source.Buf2);
+        if (0 != (dirty & BUF3)) SlotRing.copy(dest.Buf3, source.Buf3);
+        if (0 != (dirty & BUF4)) SlotRing.copy(dest.Buf4, source.Buf4);
+        if (0 != (dirty & BUF5)) SlotRing.copy(dest.Buf5, source.Buf5);
+        source.dirtyBuffers = 0;
 
         dest.Buf6 = source.Buf6;
         dest.Buf7 = source.Buf7;
@@ -1367,33 +2786,93 @@ class ProcessorState {
         dest.Buf10 = source.Buf10;
         dest.Buf11 = source.Buf11;
         dest.Buf12 = source.Buf12;
+        if (source.hasStages) {
+            for (int k = 0; k < PipelineConfig.UNITS; ++k) {
+                System.arraycopy(source.stages[k], 0, dest.stages[k], 0, source.stages[k].length);
+            }
+        }
 
         dest.waitingBranch = source.waitingBranch;
         dest.executedBranch = source.executedBranch;
+        dest.buf1Writes = source.buf1Writes;
     }
 }
+
 class Processor {
     Memory memory;
-    ProcessorState state = new ProcessorState();
-    ProcessorState stateNext = new ProcessorState();
+    final PipelineConfig config;
+    InFlightTable inFlight;
+    ProcessorState state;
+    ProcessorState stateNext;
+    SnapshotRenderer renderer;
+    // The number of the next cycle to run, and the number of characters
+    // simulate() has written for the cycles before it.
+    int cycle = 1;
+    long outputLength;
+    // Saves checkpoints while simulating, or null.
+    Checkpointer checkpointer;
+    // Chooses the cycles simulate() writes, or null to write every cycle.
+    SnapshotFilter filter;
+    // Counts stalls and occupancy every cycle, or null.
+    PipelineStats stats;
+    // Counts cycles and instructions for measuring the simulator, or null.
+    HostMetrics host;
+    // Counts fetches, issues and stalls per instruction address, or null.
+    ExecutionProfile profile;
+
+    // The geometry of config, unpacked for the stages. The issue widths are
+    // only checked if limitIssue is set, and a unit that is not pipelined
+    // only if allPipelined is not.
+    protected final int fetchBytes;
+    protected final int mulLatency;
+    protected final boolean limitIssue;
+    protected final int[] issueWidth = new int[PipelineConfig.QUEUES];
+    protected final int[] issueCounts = new int[PipelineConfig.QUEUES];
+    protected final boolean allPipelined;
 
     public Processor(Memory memory) {
+        this(memory, new PipelineConfig());
+    }
+
+    public Processor(Memory memory, PipelineConfig config) {
         this.memory = memory;
+        this.config = config;
+        inFlight = new InFlightTable(config.slots());
+        state = new ProcessorState(inFlight, config);
+        stateNext = new ProcessorState(inFlight, config);
+        olderReads = new long[config.buf1Depth + 1];
+        fetchBytes = 4 * config.fetchWidth;
+        mulLatency = config.latency[PipelineConfig.MUL];
+        boolean limitIssue = false;
+        for (int k = 0; k < PipelineConfig.QUEUES; ++k) {
+            issueWidth[k] = 0 == config.issueWidth[k] ? Integer.MAX_VALUE : config.issueWidth[k];
+            if (0 != config.issueWidth[k]) limitIssue = true;
+        }
+        this.limitIssue = limitIssue;
+        boolean allPipelined = true;
+        for (boolean pipelined : config.pipelined) allPipelined &= pipelined;
+        this.allPipelined = allPipelined;
+        state.pc = memory.entryAddr();
+        stateNext.pc = memory.entryAddr();
     }
 
     public Processor(String pathString) throws IOException {
-        this(new Memory(pathString));
+        this(Memory.read(pathString));
     }
 
-    public static int firstNonNullIndex(Object[] array, int start) {
-        for (int k = start; k < array.length; ++k) {
-            if (array[k] != null) return k;
-        }
-        return -1;
+    // Starts the pipeline from the architectural state sim has reached, so a
+    // program can be run functionally up to a region of interest. The pc and
+    // registers come from sim, the buffers start empty and the first cycle
+    // after the switch is cycle 1.
+    public Processor(FunctionalSimulator sim) {
+        this(sim, new PipelineConfig());
     }
 
-    public static int firstNonNullIndex(Object[] array) {
-        return firstNonNullIndex(array, 0);
+    public Processor(FunctionalSimulator sim, PipelineConfig config) {
+        this(sim.memory(), config);
+        state.pc = sim.pc();
+        state.regFile.load(sim.registers(), 0);
+        ProcessorState.copy(stateNext, state);
     }
 
     public static int firstNullIndex(Object[] array, int start) {
@@ -1407,41 +2886,31 @@ class Processor {
         return firstNullIndex(array, 0);
     }
 
-    public static boolean rawPresent(Instruction[] buf, Instruction input, int end) {
-        int dest, src1 = input.src1(), src2 = input.src2();
-        for (int k = 0; k < end; ++k) {
-            if (buf[k] == null) continue;
-            dest = buf[k].dest();
-            if (dest < 0) continue;
-            if (RegisterFile.LO_HI_INDEX == dest) {
-                if (RegisterFile.LO_INDEX == src1 || RegisterFile.HI_INDEX == src1
-                 || RegisterFile.LO_INDEX == src2 || RegisterFile.HI_INDEX == src2) {
-                    return true;
-                }
-            }
-            if (dest == src1 || dest == src2) {
-                return true;
-            }
-        }
-        return false;
-    }
+    // The hazard checks in issue() compare register masks. olderReads[j] is
+    // the union of srcMask() over the Buf1 entries before position j, which
+    // also tells whether any of them is a store.
+    protected final long[] olderReads;
 
+    // The reads of the Buf1 entries older than the instruction at position k,
+    // where the older entries are those before the first entry whose address
+    // is not below the instruction's own. When Buf1 holds more than one trip
+    // around a loop these can be fewer than the entries before position k.
+    protected long olderReads(int k) {
+        SlotRing buf = state.Buf1;
+        int address = inFlight.inst[buf.get(k)].address();
+        int j = 0;
+        while (inFlight.inst[buf.get(j)].address() < address) ++j;
+        return olderReads[j];
+    }
 
     protected void tryExecWaitingBranch() {
         // We read from stateNext because a branch whose operands are available or
         // immediate should be executed in the same cycle it was fetched.
         if (null == stateNext.waitingBranch) return;
         InstCat1 inst = stateNext.waitingBranch;
-        if (state.regFile.getAwaiting(inst.src1()) || state.regFile.getAwaiting(inst.src2())) {
-            return;
-        }
-        if (rawPresent(stateNext.Buf1, inst, stateNext.Buf1.length)) {
-            return;
-        }
-        inst.src1val = state.regFile.get(inst.src1());
-        inst.src2val = state.regFile.get(inst.src2());
-        inst.execute();
-        stateNext.pc = inst.result();
+        if (0 != (state.regFile.awaitMask() & inst.srcMask())) return;
+        if (0 != (stateNext.buf1Writes & inst.srcMask())) return;
+        stateNext.pc = inst.execute(state.regFile.get(inst.src1()), state.regFile.get(inst.src2()));
         stateNext.executedBranch = inst;
         stateNext.waitingBranch = null;
     }
@@ -1453,17 +2922,18 @@ class Processor {
             return true;
         }
 
-        int index = firstNullIndex(state.Buf1);
-        if (index < 0) return true;
+        int index = state.Buf1.size();
+        if (index >= state.Buf1.capacity()) return true;
 
         Instruction inst;
         loop:
-            for (; stateNext.pc < state.pc + 16
-                    && index < state.Buf1.length
+            for (; stateNext.pc < state.pc + fetchBytes
+                    && index < state.Buf1.capacity()
                     && stateNext.pc < memory.maxAddr()
                  ; stateNext.pc += 4)
             {
-                inst = Instruction.decode(stateNext.pc, memory.fetch(stateNext.pc));
+                inst = memory.fetchInstruction(stateNext.pc);
+                if (null != profile) ++profile.fetched[Memory.addr2index(stateNext.pc)];
                 switch (inst.type()) {
                     case J:
                     case BEQ:
@@ -1477,62 +2947,34 @@ class Processor {
                         return false;
                     default:
                         // put the instruction in Buf1.
-                        stateNext.Buf1[index++] = inst;
+                        stateNext.pushBuf1(inFlight.allocate(inst));
+                        ++index;
                 }
             }
         return true;
     }
 
-    public boolean warPresent(int address, int dest) {
-        if (dest < 0) {
-            return false;
-        }
-        else if (RegisterFile.LO_HI_INDEX == dest) {
-            int src1, src2;
-            for (Instruction inst : state.Buf1) {
-                if (inst == null) continue;
-                if (inst.address() >= address) return false;
-                src1 = inst.src1();
-                src2 = inst.src2();
-                if (RegisterFile.LO_INDEX == src1 || RegisterFile.HI_INDEX == src1
-                 || RegisterFile.LO_INDEX == src2 || RegisterFile.HI_INDEX == src2) {
-                    return true;
-                }
-            }
-        }
-        else {
-            for (Instruction inst : state.Buf1) {
-                if (inst == null) continue;
-                if (inst.address() >= address) return false;
-                if (inst.src1() == dest || inst.src2() == dest) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    public boolean earlierSW(int address) {
-        for (Instruction inst : state.Buf1) {
-            if (inst == null) continue;
-            if (inst.address() >= address) return false;
-            if (inst.type() == InstType.SW) return true;
-        }
-        return false;
-    }
-
-    public void issueIfSpace(int k, Instruction[] buf) {
-        Instruction inst = state.Buf1[k];
+    // buf is a buffer of stateNext and bufBit is its ProcessorState bit.
+    // Returns false if the buffer was full or had taken its issue width.
+    public boolean issueIfSpace(int k, SlotRing buf, int bufBit) {
         // Check to see if there is space in the destination buffer.
-        int index = firstNullIndex(buf);
-        if (index < 0) return;
+        if (buf.isFull()) return false;
+        if (limitIssue) {
+            int queue = Integer.numberOfTrailingZeros(bufBit) - 1;
+            if (issueCounts[queue] >= issueWidth[queue]) return false;
+            ++issueCounts[queue];
+        }
+        int slot = state.Buf1.get(k);
+        Instruction inst = inFlight.inst[slot];
         // Read operands and update the scoreboard.
-        inst.src1val = state.regFile.get(inst.src1());
-        inst.src2val = state.regFile.get(inst.src2());
+        inFlight.src1val[slot] = state.regFile.get(inst.src1());
+        inFlight.src2val[slot] = state.regFile.get(inst.src2());
         stateNext.regFile.setAwaiting(inst.dest());
-        // Copy the instruction to the destination and remove it from the source.
-        buf[index] = inst;
-        stateNext.Buf1[k] = null;
+        // Move the instruction to the destination and remove it from the source.
+        buf.push(slot);
+        stateNext.Buf1.remove(k);
+        stateNext.dirtyBuffers |= ProcessorState.BUF1 | bufBit;
+        return true;
     }
 
     /* ALU2 instructions:
@@ -1541,118 +2983,268 @@ class Processor {
         MFHI, MFLO
     */
     public void issue() {
+        final PipelineStats stats = this.stats;
+        final ExecutionProfile profile = this.profile;
         Instruction inst;
-        for (int k = 0; k < state.Buf1.length; ++k) {
-            inst = state.Buf1[k];
-            if (inst == null) continue;
-            if (state.regFile.getAwaiting(inst)) continue;
-            if (rawPresent(state.Buf1, inst, k) || warPresent(inst.address(), inst.dest())) continue;
+        long awaiting = state.regFile.awaitMask();
+        // The registers written and read by the entries before position k.
+        long writes = 0;
+        long reads = 0;
+        long older, src, dest;
+        boolean hazard, issued;
+        int address, maxAddress = Integer.MIN_VALUE;
+        int end = state.Buf1.size();
+        if (limitIssue) Arrays.fill(issueCounts, 0);
+        for (int k = 0; k < end; ++k) {
+            inst = inFlight.inst[state.Buf1.get(k)];
+            src = inst.srcMask();
+            dest = inst.destMask();
+            address = inst.address();
+            olderReads[k] = reads;
+            older = address > maxAddress ? reads : olderReads(k);
+            // Check the scoreboard, then RAW with an entry before this one and
+            // WAR with an older entry.
+            hazard = 0 != (awaiting & (src | dest))
+                || 0 != (writes & src) || 0 != (older & dest);
+            if (hazard && null != stats) stats.hazard(awaiting, writes, src, dest);
+            writes |= dest;
+            reads |= src;
+            if (address > maxAddress) maxAddress = address;
+            if (hazard) continue;
             switch (inst.type()) {
                 case LW:
                 case SW:
-                    if (earlierSW(inst.address())) continue;
-                    issueIfSpace(k, stateNext.Buf2);
+                    if (0 != (older & Instruction.STORE_BIT)) {
+                        if (null != stats) stats.issueStall(PipelineStats.Stall.EARLIER_SW);
+                        continue;
+                    }
+                    issued = issueIfSpace(k, stateNext.Buf2, ProcessorState.BUF2);
                     break;
                 case DIV:
-                    issueIfSpace(k, stateNext.Buf3);
+                    issued = issueIfSpace(k, stateNext.Buf3, ProcessorState.BUF3);
                     break;
                 case MULT:
-                    issueIfSpace(k, stateNext.Buf4);
+                    issued = issueIfSpace(k, stateNext.Buf4, ProcessorState.BUF4);
                     break;
                 default:
-                    issueIfSpace(k, stateNext.Buf5);
+                    issued = issueIfSpace(k, stateNext.Buf5, ProcessorState.BUF5);
             }
+            if (null != stats) stats.issue(issued, inst.type());
+            if (issued && null != profile) ++profile.issued[Memory.addr2index(address)];
         }
     }
 
+    // Moves the oldest entry of a buffer into its unit, which is the entry at
+    // the head of both states. Returns the slot, or EMPTY if the buffer was
+    // empty at the start of the cycle.
+    protected int dispatch(SlotRing buf, SlotRing bufNext, int bufBit) {
+        if (buf.isEmpty()) return SlotRing.EMPTY;
+        stateNext.dirtyBuffers |= bufBit;
+        return bufNext.pop();
+    }
+
+    // Whether unit, which is not pipelined, still holds an instruction in
+    // a stage before its output latch.
+    protected boolean busy(int unit) {
+        if (config.pipelined[unit]) return false;
+        for (int slot : state.stages[unit]) {
+            if (SlotRing.EMPTY != slot) return true;
+        }
+        if (PipelineConfig.MUL == unit) {
+            if (mulLatency > 1 && SlotRing.EMPTY != state.Buf8) return true;
+            if (mulLatency > 2 && SlotRing.EMPTY != state.Buf11) return true;
+        }
+        return false;
+    }
+
+    // Moves slot into the first hidden stage of unit and returns the slot
+    // leaving the last, or slot itself if the unit has no hidden stages.
+    protected int delay(int unit, int slot) {
+        int[] stages = state.stages[unit];
+        int last = stages.length - 1;
+        if (last < 0) return slot;
+        int[] stagesNext = stateNext.stages[unit];
+        System.arraycopy(stages, 0, stagesNext, 1, last);
+        stagesNext[0] = slot;
+        return stages[last];
+    }
+
     public void alu2() {
-        stateNext.Buf6 = null;
-        int k = firstNonNullIndex(state.Buf2);
-        if (k < 0) return;
-        stateNext.Buf6 = state.Buf2[k];
-        stateNext.Buf2[k] = null;
-        if (null == stateNext.Buf6) return;
-        stateNext.Buf6.execute();
+        int slot = !allPipelined && busy(PipelineConfig.ALU2) ? SlotRing.EMPTY
+            : dispatch(state.Buf2, stateNext.Buf2, ProcessorState.BUF2);
+        if (SlotRing.EMPTY != slot) {
+            inFlight.result[slot] = inFlight.inst[slot].execute(inFlight.src1val[slot], inFlight.src2val[slot]);
+        }
+        stateNext.Buf6 = delay(PipelineConfig.ALU2, slot);
     }
 
+    // Loads and stores access memory as they enter the unit. A store leaves
+    // the pipeline when it leaves the unit.
     public void mem() {
-        stateNext.Buf10 = null;
-        if (null == state.Buf6) return;
-        InstLoadStore inst = state.Buf6;
-        switch (inst.type()) {
-            case LW:
-                inst.data = memory.fetch(inst.result());
-                stateNext.Buf10 = (InstLW)inst;
-                break;
-            case SW:
-                memory.store(inst.result(), state.regFile.get(inst.src2()));
-                break;
-            default:
-                throw new UnknownError("The entry in Buf6 is not a LW nor a SW.");
+        int slot = state.Buf6;
+        if (SlotRing.EMPTY != slot) {
+            Instruction inst = inFlight.inst[slot];
+            switch (inst.type()) {
+                case LW:
+                    inFlight.data[slot] = memory.fetch(inFlight.result[slot]);
+                    break;
+                case SW:
+                    memory.store(inFlight.result[slot], state.regFile.get(inst.src2()));
+                    break;
+                default:
+                    throw new UnknownError("The entry in Buf6 is not a LW nor a SW.");
+            }
         }
+        slot = delay(PipelineConfig.MEM, slot);
+        stateNext.Buf10 = SlotRing.EMPTY;
+        if (SlotRing.EMPTY == slot) return;
+        if (InstType.SW == inFlight.inst[slot].type()) inFlight.release(slot);
+        else stateNext.Buf10 = slot;
+    }
+
+    // Executes a MULT or DIV, leaving lo in result and hi in hi.
+    protected void executeHiLo(int slot) {
+        InstCat4 inst = (InstCat4)inFlight.inst[slot];
+        int src1val = inFlight.src1val[slot], src2val = inFlight.src2val[slot];
+        inFlight.result[slot] = inst.execute(src1val, src2val);
+        inFlight.hi[slot] = inst.executeHi(src1val, src2val);
     }
 
     public void div() {
-        stateNext.Buf7 = null;
-        int k = firstNonNullIndex(state.Buf3);
-        if (k < 0) return;
-        stateNext.Buf7 = state.Buf3[k];
-        stateNext.Buf3[k] = null;
-        if (null == stateNext.Buf7) return;
-        stateNext.Buf7.execute();
+        int slot = !allPipelined && busy(PipelineConfig.DIV) ? SlotRing.EMPTY
+            : dispatch(state.Buf3, stateNext.Buf3, ProcessorState.BUF3);
+        if (SlotRing.EMPTY != slot) executeHiLo(slot);
+        stateNext.Buf7 = delay(PipelineConfig.DIV, slot);
     }
 
+    // MUL passes through Buf8, its hidden stages and Buf11 to Buf12. With a
+    // latency of 2 it skips Buf11, and with 1 it goes straight to Buf12.
     public void mul1() {
-        stateNext.Buf8 = null;
-        int k = firstNonNullIndex(state.Buf4);
-        if (k < 0) return;
-        stateNext.Buf8 = state.Buf4[k];
-        stateNext.Buf4[k] = null;
-        if (null == stateNext.Buf8) return;
-        stateNext.Buf8.execute();
+        int slot = !allPipelined && busy(PipelineConfig.MUL) ? SlotRing.EMPTY
+            : dispatch(state.Buf4, stateNext.Buf4, ProcessorState.BUF4);
+        if (SlotRing.EMPTY != slot) executeHiLo(slot);
+        if (mulLatency > 1) stateNext.Buf8 = slot;
+        else stateNext.Buf12 = slot;
     }
 
     public void alu1() {
-        stateNext.Buf9 = null;
-        int k = firstNonNullIndex(state.Buf5);
-        if (k < 0) return;
-        Instruction inst = state.Buf5[k];
-        stateNext.Buf9 = inst;
-        stateNext.Buf5[k] = null;
-        if (null == inst) return;
-        inst.execute();
+        int slot = !allPipelined && busy(PipelineConfig.ALU1) ? SlotRing.EMPTY
+            : dispatch(state.Buf5, stateNext.Buf5, ProcessorState.BUF5);
+        if (SlotRing.EMPTY != slot) {
+            inFlight.result[slot] = inFlight.inst[slot].execute(inFlight.src1val[slot], inFlight.src2val[slot]);
+        }
+        stateNext.Buf9 = delay(PipelineConfig.ALU1, slot);
     }
 
     public void mul2() {
-        stateNext.Buf11 = state.Buf8;
+        if (mulLatency > 2) stateNext.Buf11 = delay(PipelineConfig.MUL, state.Buf8);
+        else if (mulLatency > 1) stateNext.Buf12 = state.Buf8;
     }
 
     public void mul3() {
-        stateNext.Buf12 = state.Buf11;
+        if (mulLatency > 2) stateNext.Buf12 = state.Buf11;
     }
 
+    // Instructions leave the pipeline here, so their slots are released. No
+    // slot is taken again before the next cycle's fetch.
     public void writeBack() {
-        if (state.Buf10 != null) {
-            stateNext.regFile.set(state.Buf10.dest(), state.Buf10.data);
+        int slot = state.Buf10;
+        if (SlotRing.EMPTY != slot) {
+            stateNext.regFile.set(inFlight.inst[slot].dest(), inFlight.data[slot]);
+            inFlight.release(slot);
         }
-        if (state.Buf7 != null) {
-            stateNext.regFile.set(RegisterFile.LO_INDEX, state.Buf7.lo());
-            stateNext.regFile.set(RegisterFile.HI_INDEX, state.Buf7.hi());
+        slot = state.Buf7;
+        if (SlotRing.EMPTY != slot) {
+            stateNext.regFile.set(RegisterFile.LO_INDEX, inFlight.result[slot]);
+            stateNext.regFile.set(RegisterFile.HI_INDEX, inFlight.hi[slot]);
+            inFlight.release(slot);
         }
-        if (state.Buf12 != null) {
-            stateNext.regFile.set(RegisterFile.LO_INDEX, state.Buf12.lo());
+        slot = state.Buf12;
+        if (SlotRing.EMPTY != slot) {
+            stateNext.regFile.set(RegisterFile.LO_INDEX, inFlight.result[slot]);
             // The state of hi must always to 0 to be consistent with the sample simulation.
             stateNext.regFile.set(RegisterFile.HI_INDEX, 0);
+            inFlight.release(slot);
         }
-        if (state.Buf9 != null) {
-            stateNext.regFile.set(state.Buf9.dest(), state.Buf9.result());
+        slot = state.Buf9;
+        if (SlotRing.EMPTY != slot) {
+            stateNext.regFile.set(inFlight.inst[slot].dest(), inFlight.result[slot]);
+            inFlight.release(slot);
         }
     }
 
-    public String simulate() {
-        StringBuilder builder = new StringBuilder(8096);
-        int cycle = 1;
-        while (fetch()) {
+    // Runs the program to completion, writing the snapshot of each cycle to
+    // out as soon as it is produced. The text written is the same as the
+    // string returned by simulate(), so memory use does not grow with the
+    // number of cycles when out is a stream. Returns the number of cycles.
+    //
+    // A processor restored from a checkpoint continues from the cycle after
+    // it, writing only the rest of the output. With a filter, only the cycles
+    // it accepts are rendered and written.
+    public int simulate(Appendable out) throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        SnapshotRenderer renderer = renderer();
+        SnapshotFilter filter = this.filter;
+        boolean running = true;
+        int length;
+        try {
+            while (running) {
+                running = step();
+                if (null == filter || filter.accept(state, memory, cycle, !running)) {
+                    // Each snapshot ends with a line separator. It is written ahead of
+                    // the next snapshot instead so the output has no trailing newline.
+                    if (outputLength > 0) {
+                        out.append(newLine);
+                        outputLength += newLine.length();
+                    }
+                    renderer.render(state, cycle);
+                    length = renderer.length() - newLine.length();
+                    renderer.writeTo(out, length);
+                    outputLength += length;
+                }
+                ++cycle;
+                if (running && null != checkpointer) checkpointer.cycleDone(this, out);
+            }
+        }
+        finally {
+            if (null != checkpointer) checkpointer.finish();
+        }
+        return cycle - 1;
+    }
+
+    // Runs the program to completion, handing each cycle to writer to render
+    // and write on other threads. Cycles the filter rejects only pass on the
+    // data words they changed. Returns the number of cycles.
+    public int simulate(SnapshotSink writer) throws IOException {
+        SnapshotFilter filter = this.filter;
+        boolean running = true;
+        while (running) {
+            running = step();
+            writer.capture(state, cycle, null == filter || filter.accept(state, memory, cycle, !running));
+            ++cycle;
+        }
+        return cycle - 1;
+    }
+
+    // Runs the program to completion, recording every cycle in trace instead
+    // of rendering it. Returns the number of cycles.
+    public int trace(TraceWriter trace) throws IOException {
+        boolean running = true;
+        while (running) {
+            running = step();
+            trace.record(state, cycle++);
+        }
+        return cycle - 1;
+    }
+
+    // Runs one cycle and makes its state current. Returns false for the cycle
+    // that fetches BREAK, which is the last one.
+    public boolean step() {
+        boolean running = fetch();
+        if (null != profile) profile.startCycle(state, stateNext, running);
+        if (running) {
+            if (null != stats) stats.startCycle(state, stateNext);
+            if (null != host) host.retired += PipelineStats.completing(state, stateNext);
             issue();
             alu2();
             mem();
@@ -1662,131 +3254,3822 @@ class Processor {
             mul3();
             alu1();
             writeBack();
-            ProcessorState.copy(state, stateNext);
-            builder.append(cycleSnapshot(cycle++));
         }
-        ProcessorState.copy(state, stateNext);
-        builder.append(cycleSnapshot(cycle++));
-        return builder.toString().trim();
+        advance();
+        if (null != stats) stats.endCycle(state, running);
+        if (null != host && ++host.cycles == host.nextProgress) host.progress();
+        return running;
     }
 
-    public String getGprState(int index) {
-        String[] values = new String[8];
-        for (int k = 0; k < 8; ++k, ++index) {
-            values[k] = Integer.toString(state.regFile.get(index));
-        }
-        return String.join("\t", values);
+    // Makes the state built during this cycle current by swapping the two
+    // state objects, then replays this cycle's writes onto the one that will
+    // be built next.
+    protected void advance() {
+        ProcessorState finished = stateNext;
+        stateNext = state;
+        state = finished;
+        ProcessorState.sync(stateNext, state);
     }
 
-    public String getDataState(int addr) {
-        String[] values = new String[8];
-        for (int k = 0; k < 8 && addr < memory.maxAddr(); ++k, addr += 4) {
-            values[k] = Integer.toString(memory.fetch(addr));
+    public String simulate() {
+        StringBuilder builder = new StringBuilder(8096);
+        try {
+            simulate(builder);
         }
-        return String.join("\t", values);
-    }
-
-    public static void bufferSnapshot(StringBuilder builder, Instruction[] buf, String name) {
-        String newLine = MIPSsim.LINE_SEP;
-        builder.append(name + ":" + newLine);
-        for (int k = 0; k < buf.length; ++k) {
-            builder.append(String.format("\tEntry %d:", k));
-            if (null != buf[k])
-                builder.append(String.format(" [%s]%n", buf[k].disassemble()));
-            else
-                builder.append(newLine);
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return builder.toString();
     }
 
     public String cycleSnapshot(int cycle) {
         if (0 == cycle) return "";
-        String newLine = MIPSsim.LINE_SEP;
-        StringBuilder builder = new StringBuilder(480);
-        builder.append("--------------------" + newLine);
-        builder.append(String.format("Cycle %d:%n%n", cycle));
-
-        builder.append("IF:" + newLine);
-        builder.append(String.format("\tWaiting:"));
-        if (state.waitingBranch != null)
-            builder.append(String.format(" [%s]%n", state.waitingBranch.disassemble()));
-        else
-            builder.append(newLine);
-        builder.append("\tExecuted:");
-        if (state.executedBranch != null)
-            builder.append(String.format(" [%s]%n", state.executedBranch.disassemble()));
-        else
-            builder.append(newLine);
-
-        bufferSnapshot(builder, state.Buf1, "Buf1");
-        bufferSnapshot(builder, state.Buf2, "Buf2");
-        bufferSnapshot(builder, state.Buf3, "Buf3");
-        bufferSnapshot(builder, state.Buf4, "Buf4");
-        bufferSnapshot(builder, state.Buf5, "Buf5");
-
-        builder.append("Buf6:");
-        if (null != state.Buf6)
-            builder.append(String.format(" [%s]%n", state.Buf6.disassemble()));
-        else
-            builder.append(newLine);
-
-        builder.append("Buf7:");
-        if (null != state.Buf7)
-            builder.append(String.format(" [%d, %d]%n", state.Buf7.hi(), state.Buf7.lo()));
-        else
-            builder.append(newLine);
-        
-        builder.append("Buf8:");
-        if (null != state.Buf8)
-            builder.append(String.format(" [%s]%n", state.Buf8.disassemble()));
-        else
-            builder.append(newLine);
-
-        builder.append("Buf9:");
-        if (null != state.Buf9)
-            builder.append(String.format(" [%d, R%d]%n", state.Buf9.result(), state.Buf9.dest()));
-        else
-            builder.append(newLine);
-
-        builder.append("Buf10:");
-        if (null != state.Buf10)
-            builder.append(String.format(" [%d, R%d]%n", state.Buf10.data, state.Buf10.dest()));
-        else
-            builder.append(newLine);
-
-        builder.append("Buf11:");
-        if (null != state.Buf11)
-            builder.append(String.format(" [%s]%n", state.Buf11.disassemble()));
-        else
-            builder.append(newLine);
-
-        builder.append("Buf12:");
-        if (null != state.Buf12)
-            builder.append(String.format(" [%d]%n", state.Buf12.lo()));
-        else
-            builder.append(newLine);
-
-        builder.append(newLine);
-        builder.append("Registers" + newLine);
-        for (int k = 0; k < 32; k += 8) {
-            builder.append(String.format("R%02d:\t%s%n", k, getGprState(k)));
-        }
-        builder.append(String.format("HI:\t%d%n", state.regFile.hi()));
-        builder.append(String.format("LO:\t%d%n", state.regFile.lo()));
-        builder.append(newLine);
-        builder.append("Data" + newLine);
-        for (int k = memory.dataStartAddr(); k < memory.maxAddr(); k += 32) {
-            builder.append(String.format("%d:\t%s%n", k, getDataState(k)));
-        }
-        return builder.toString();
+        return renderer().render(state, cycle).toString();
+    }
+
+    public SnapshotRenderer renderer() {
+        if (null == renderer) renderer = new SnapshotRenderer(memory);
+        return renderer;
     }
 }
 
-public class MIPSsim {
+// Performance counters for the pipeline. A Processor with stats updates them
+// every cycle; without, each hook costs one null check. Stall counts are per
+// Buf1 entry per cycle, and each stalled entry is counted under the first
+// cause found, in the order of the Stall values. Occupancy histograms count
+// the cycles each buffer or latch ended with each number of entries.
+//
+// Samples of the counters, all cumulative, are written to out as JSON, one
+// object per line, or as CSV with a header row. With a positive interval a
+// sample is written every interval cycles, and one more at the end.
+class PipelineStats {
+    enum Stall {
+        AWAIT("await"),
+        RAW("raw"),
+        WAR("war"),
+        EARLIER_SW("earlierSW"),
+        BUF2_FULL("buf2Full"),
+        BUF3_FULL("buf3Full"),
+        BUF4_FULL("buf4Full"),
+        BUF5_FULL("buf5Full");
+
+        final String label;
+
+        Stall(String label) {
+            this.label = label;
+        }
+    }
+
+    enum Format { JSON, CSV }
+
+    static final int BUFFERS = 12;
+    // The writeback latches, and the instructions they complete.
+    static final String[] WRITEBACK_LABELS = {"div", "alu", "load", "mult"};
+
+    long cycles;
+    // Instructions that reached writeback, stores that reached memory, and
+    // branches and jumps executed.
+    final long[] writebacks = new long[WRITEBACK_LABELS.length];
+    long stores;
+    long branches;
+    long issued;
+    final long[] issueStalls = new long[Stall.values().length];
+    // Cycles in which Buf1 had entries but none issued.
+    long issueStallCycles;
+    // Cycles in which fetch waited on a branch or found Buf1 full.
+    long fetchBranchStalls;
+    long fetchBuf1Full;
+    final long[][] occupancy = new long[BUFFERS][];
+
+    protected int issuedThisCycle;
+    protected boolean buf1Waiting;
+
+    final Format format;
+    final Appendable out;
+    final int interval;
+    protected boolean headerWritten;
+    protected long lastSample = -1;
+
+    public PipelineStats(Format format, Appendable out, int interval) {
+        this(format, out, interval, new PipelineConfig());
+    }
+
+    // Counts occupancy for the buffer depths of config.
+    public PipelineStats(Format format, Appendable out, int interval, PipelineConfig config) {
+        this.format = format;
+        this.out = out;
+        this.interval = interval;
+        occupancy[0] = new long[config.buf1Depth + 1];
+        for (int k = 1; k < 5; ++k) {
+            occupancy[k] = new long[config.queueDepth[k - 1] + 1];
+        }
+        for (int k = 5; k < BUFFERS; ++k) {
+            occupancy[k] = new long[2];
+        }
+    }
+
+    // The instructions completed in the cycle from state, with fetch having
+    // executed any branch into stateNext: those written back, the store
+    // writing memory and the branch.
+    static int completing(ProcessorState state, ProcessorState stateNext) {
+        int count = 0;
+        if (SlotRing.EMPTY != state.Buf7) ++count;
+        if (SlotRing.EMPTY != state.Buf9) ++count;
+        if (SlotRing.EMPTY != state.Buf10) ++count;
+        if (SlotRing.EMPTY != state.Buf12) ++count;
+        if (SlotRing.EMPTY != state.Buf6 && InstType.SW == state.inFlight.inst[state.Buf6].type()) ++count;
+        if (null != stateNext.executedBranch) ++count;
+        return count;
+    }
+
+    /** Instructions completed per cycle. */
+    public double ipc() {
+        return 0 == cycles ? 0 : (double)completed() / cycles;
+    }
+
+    public long completed() {
+        long total = stores + branches;
+        for (long count : writebacks) total += count;
+        return total;
+    }
+
+    // Called at the start of a running cycle, before any unit: state is the
+    // state the cycle started from and stateNext has been fetched into.
+    void startCycle(ProcessorState state, ProcessorState stateNext) {
+        if (SlotRing.EMPTY != state.Buf7) ++writebacks[0];
+        if (SlotRing.EMPTY != state.Buf9) ++writebacks[1];
+        if (SlotRing.EMPTY != state.Buf10) ++writebacks[2];
+        if (SlotRing.EMPTY != state.Buf12) ++writebacks[3];
+        if (SlotRing.EMPTY != state.Buf6 && InstType.SW == state.inFlight.inst[state.Buf6].type()) ++stores;
+        if (null != stateNext.executedBranch) ++branches;
+        if (null != state.waitingBranch) ++fetchBranchStalls;
+        else if (state.Buf1.isFull()) ++fetchBuf1Full;
+        issuedThisCycle = 0;
+        buf1Waiting = !state.Buf1.isEmpty();
+    }
+
+    // Called by issue() for an entry held by a hazard, with the masks it was
+    // checked against.
+    void hazard(long awaiting, long writes, long src, long dest) {
+        Stall cause;
+        if (0 != (awaiting & (src | dest))) cause = Stall.AWAIT;
+        else if (0 != (writes & src)) cause = Stall.RAW;
+        else cause = Stall.WAR;
+        ++issueStalls[cause.ordinal()];
+    }
+
+    void issueStall(Stall cause) {
+        ++issueStalls[cause.ordinal()];
+    }
+
+    // Called by issue() for an entry free of hazards, which issued unless
+    // the buffer for its type was full.
+    void issue(boolean issued, InstType type) {
+        if (issued) {
+            ++this.issued;
+            ++issuedThisCycle;
+            return;
+        }
+        switch (type) {
+            case LW:
+            case SW:
+                issueStall(Stall.BUF2_FULL);
+                break;
+            case DIV:
+                issueStall(Stall.BUF3_FULL);
+                break;
+            case MULT:
+                issueStall(Stall.BUF4_FULL);
+                break;
+            default:
+                issueStall(Stall.BUF5_FULL);
+        }
+    }
+
+    // Called at the end of each cycle with the state it made current.
+    void endCycle(ProcessorState state, boolean running) {
+        ++cycles;
+        if (running && buf1Waiting && 0 == issuedThisCycle) ++issueStallCycles;
+        ++occupancy[0][state.Buf1.size()];
+        ++occupancy[1][state.Buf2.size()];
+        ++occupancy[2][state.Buf3.size()];
+        ++occupancy[3][state.Buf4.size()];
+        ++occupancy[4][state.Buf5.size()];
+        ++occupancy[5][SlotRing.EMPTY == state.Buf6 ? 0 : 1];
+        ++occupancy[6][SlotRing.EMPTY == state.Buf7 ? 0 : 1];
+        ++occupancy[7][SlotRing.EMPTY == state.Buf8 ? 0 : 1];
+        ++occupancy[8][SlotRing.EMPTY == state.Buf9 ? 0 : 1];
+        ++occupancy[9][SlotRing.EMPTY == state.Buf10 ? 0 : 1];
+        ++occupancy[10][SlotRing.EMPTY == state.Buf11 ? 0 : 1];
+        ++occupancy[11][SlotRing.EMPTY == state.Buf12 ? 0 : 1];
+        if (interval > 0 && 0 == cycles % interval) {
+            try {
+                sample();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Writes a sample unless one was just written for this cycle. */
+    public void finish() throws IOException {
+        if (lastSample != cycles) sample();
+    }
+
+    // The counters of a sample as names and values, in order. The
+    // occupancy of each buffer is one name per entry count.
+    protected List<String> names() {
+        List<String> names = counterNames();
+        for (int k = 0; k < BUFFERS; ++k) {
+            for (int n = 0; n < occupancy[k].length; ++n) names.add("occupancy.Buf" + (k + 1) + "." + n);
+        }
+        return names;
+    }
+
+    protected List<String> values() {
+        List<String> values = counterValues();
+        for (long[] histogram : occupancy) {
+            for (long count : histogram) values.add(Long.toString(count));
+        }
+        return values;
+    }
+
+    // The counters other than occupancy, which are the same for every
+    // pipeline configuration.
+    static List<String> counterNames() {
+        List<String> names = new ArrayList<String>();
+        names.add("cycles");
+        names.add("completed");
+        names.add("ipc");
+        names.add("issued");
+        names.add("issueStallCycles");
+        for (Stall stall : Stall.values()) names.add("issueStalls." + stall.label);
+        names.add("fetchStalls.waitingBranch");
+        names.add("fetchStalls.buf1Full");
+        for (String label : WRITEBACK_LABELS) names.add("writebacks." + label);
+        names.add("stores");
+        names.add("branches");
+        return names;
+    }
+
+    List<String> counterValues() {
+        List<String> values = new ArrayList<String>();
+        values.add(Long.toString(cycles));
+        values.add(Long.toString(completed()));
+        values.add(Double.toString(ipc()));
+        values.add(Long.toString(issued));
+        values.add(Long.toString(issueStallCycles));
+        for (long count : issueStalls) values.add(Long.toString(count));
+        values.add(Long.toString(fetchBranchStalls));
+        values.add(Long.toString(fetchBuf1Full));
+        for (long count : writebacks) values.add(Long.toString(count));
+        values.add(Long.toString(stores));
+        values.add(Long.toString(branches));
+        return values;
+    }
+
+    /** Writes the counters as they are now. */
+    public void sample() throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        lastSample = cycles;
+        if (Format.CSV == format) {
+            if (!headerWritten) out.append(String.join(",", names())).append(newLine);
+            out.append(String.join(",", values())).append(newLine);
+        }
+        else {
+            out.append(json()).append(newLine);
+        }
+        headerWritten = true;
+    }
+
+    // The counters as one JSON object, with the stalls, writebacks and
+    // occupancy histograms nested.
+    public String json() {
+        StringBuilder builder = new StringBuilder(1024);
+        builder.append("{\"cycles\":").append(cycles);
+        builder.append(",\"completed\":").append(completed());
+        builder.append(",\"ipc\":").append(ipc());
+        builder.append(",\"issued\":").append(issued);
+        builder.append(",\"issueStallCycles\":").append(issueStallCycles);
+        builder.append(",\"issueStalls\":{");
+        for (Stall stall : Stall.values()) {
+            if (stall.ordinal() > 0) builder.append(',');
+            builder.append('"').append(stall.label).append("\":").append(issueStalls[stall.ordinal()]);
+        }
+        builder.append("},\"fetchStalls\":{\"waitingBranch\":").append(fetchBranchStalls);
+        builder.append(",\"buf1Full\":").append(fetchBuf1Full);
+        builder.append("},\"writebacks\":{");
+        for (int k = 0; k < WRITEBACK_LABELS.length; ++k) {
+            if (k > 0) builder.append(',');
+            builder.append('"').append(WRITEBACK_LABELS[k]).append("\":").append(writebacks[k]);
+        }
+        builder.append("},\"stores\":").append(stores);
+        builder.append(",\"branches\":").append(branches);
+        builder.append(",\"occupancy\":{");
+        for (int k = 0; k < BUFFERS; ++k) {
+            if (k > 0) builder.append(',');
+            builder.append("\"Buf").append(k + 1).append("\":[");
+            for (int n = 0; n < occupancy[k].length; ++n) {
+                if (n > 0) builder.append(',');
+                builder.append(occupancy[k][n]);
+            }
+            builder.append(']');
+        }
+        return builder.append("}}").toString();
+    }
+}
+
+// Measures the simulator itself: the cycles and instructions simulated, the
+// host time taken and the bytes allocated by the simulating thread. A
+// Processor with host metrics counts its cycles and completed instructions,
+// and every progressInterval cycles commits a progress event.
+//
+// The events are JDK Flight Recorder events, so a run started with
+// -XX:StartFlightRecording shows the run, each checkpoint, each write or
+// flush of the output taking over a millisecond and the periodic progress.
+// MIPSsim only measures the host when Flight Recorder was started with the
+// JVM or --stats-host is given, so that other runs do not pay for it.
+class HostMetrics {
+    static final int DEFAULT_PROGRESS_INTERVAL = 1 << 16;
+
+    // The fields every event carries, all measured from the start of the
+    // run when the event ends.
+    @Category("MIPSsim")
+    abstract static class SimulatorEvent extends Event {
+        @Label("Simulated Cycles")
+        long cycles;
+
+        @Label("Completed Instructions")
+        long retired;
+
+        @Label("Host Time")
+        @Timespan
+        long hostNanos;
+
+        @Label("Allocated")
+        @Description("Bytes allocated by the simulating thread")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    @Name("cda5155.MIPSsim.Run")
+    @Label("Simulation Run")
+    static class RunEvent extends SimulatorEvent {
+    }
+
+    @Name("cda5155.MIPSsim.Checkpoint")
+    @Label("Checkpoint")
+    static class CheckpointEvent extends SimulatorEvent {
+        @Label("Path")
+        String path;
+    }
+
+    @Name("cda5155.MIPSsim.OutputFlush")
+    @Label("Output Flush")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FlushEvent extends SimulatorEvent {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("cda5155.MIPSsim.Progress")
+    @Label("Simulation Progress")
+    @StackTrace(false)
+    static class ProgressEvent extends SimulatorEvent {
+    }
+
+    // Times and counts the writes and flushes of the output stream it wraps.
+    class MeteredOutputStream extends FilterOutputStream {
+        MeteredOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            FlushEvent event = new FlushEvent();
+            event.begin();
+            out.write(b, off, len);
+            event.bytes = len;
+            commit(event);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            FlushEvent event = new FlushEvent();
+            event.begin();
+            out.flush();
+            commit(event);
+        }
+    }
+
+    final Thread thread;
+    final int progressInterval;
+    final RunEvent run = new RunEvent();
+    protected long startNanos;
+    protected long startAllocated;
+    protected long endNanos = -1;
+    // Counted by the processor. They are read without synchronization by
+    // events on other threads, which may see them slightly behind.
+    long cycles;
+    long retired;
+    long nextProgress;
+
+    // Measures the run on the current thread.
+    public HostMetrics(int progressInterval) {
+        this.thread = Thread.currentThread();
+        this.progressInterval = progressInterval;
+        nextProgress = progressInterval;
+    }
+
+    public HostMetrics() {
+        this(DEFAULT_PROGRESS_INTERVAL);
+    }
+
+    // The bytes the thread has allocated, or -1 if the JVM cannot tell.
+    @SuppressWarnings("deprecation")
+    static long allocatedBytes(Thread thread) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(thread.getId());
+    }
+
+    public void start() {
+        startAllocated = allocatedBytes(thread);
+        startNanos = System.nanoTime();
+        run.begin();
+    }
+
+    public void finish() {
+        endNanos = System.nanoTime();
+        commit(run);
+    }
+
+    public long hostNanos() {
+        return (endNanos < 0 ? System.nanoTime() : endNanos) - startNanos;
+    }
+
+    public long allocated() {
+        long allocated = allocatedBytes(thread);
+        return allocated < 0 ? -1 : allocated - startAllocated;
+    }
+
+    // Ends event and commits it with the counters as they are now, if it is
+    // being recorded.
+    void commit(SimulatorEvent event) {
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.cycles = cycles;
+        event.retired = retired;
+        event.hostNanos = hostNanos();
+        event.allocatedBytes = allocated();
+        event.commit();
+    }
+
+    // Called by the processor when cycles reaches nextProgress.
+    void progress() {
+        nextProgress += progressInterval;
+        ProgressEvent event = new ProgressEvent();
+        if (event.isEnabled()) commit(event);
+    }
+
+    public OutputStream meter(OutputStream out) {
+        return new MeteredOutputStream(out);
+    }
+
+    // One line with the simulation rate in cycles and millions of
+    // instructions per host second.
+    public String summary() {
+        long nanos = hostNanos();
+        double seconds = nanos / 1e9;
+        long allocated = allocated();
+        return String.format("Simulated %d cycles, %d instructions in %.3f s: %.0f cycles/s, %.3f MIPS, %s bytes allocated",
+            cycles, retired, seconds,
+            0 == nanos ? 0.0 : cycles / seconds,
+            0 == nanos ? 0.0 : retired / seconds / 1e6,
+            allocated < 0 ? "unknown" : Long.toString(allocated));
+    }
+}
+
+// Counts, for each instruction address, how often the pipeline fetched and
+// issued the instruction, the cycles it spent in Buf1, the cycles it held up
+// fetch as the branch being waited on, and the cycles charged to it. Each
+// cycle is charged to the oldest instruction in Buf1, or else to the branch
+// fetch is waiting on, or else to the address being fetched, so the charges
+// add up to the cycles run. The counters are arrays indexed by
+// Memory.addr2index(), so each update is an array increment.
+//
+// The loops are the address ranges from the target of each backward jump or
+// branch to the last one back to that target. A loop is inside another when
+// its range is.
+class ExecutionProfile {
+    static class Loop {
+        final int start;
+        int end;
+        Loop parent;
+        long cycles;
+
+        Loop(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean contains(int address) {
+            return address >= start && address <= end;
+        }
+
+        String name() {
+            return "loop " + start + "-" + end;
+        }
+    }
+
+    final Memory memory;
+    final long[] fetched;
+    final long[] issued;
+    final long[] buf1Cycles;
+    final long[] branchStalls;
+    final long[] cycles;
+    // Cycles charged to an address outside the image, as when fetch runs off
+    // its end.
+    long otherCycles;
+
+    public ExecutionProfile(Memory memory) {
+        this.memory = memory;
+        int words = Memory.addr2index(memory.maxAddr());
+        fetched = new long[words];
+        issued = new long[words];
+        buf1Cycles = new long[words];
+        branchStalls = new long[words];
+        cycles = new long[words];
+    }
+
+    // Called at the start of every cycle, after fetch has run.
+    void startCycle(ProcessorState state, ProcessorState stateNext, boolean running) {
+        if (!running) {
+            // The cycle that fetched BREAK.
+            ++cycles[Memory.addr2index(stateNext.executedBranch.address())];
+            return;
+        }
+        SlotRing buf1 = state.Buf1;
+        Instruction[] inst = state.inFlight.inst;
+        int end = buf1.size();
+        for (int k = 0; k < end; ++k) {
+            ++buf1Cycles[Memory.addr2index(inst[buf1.get(k)].address())];
+        }
+        int address;
+        if (end > 0) {
+            address = inst[buf1.get(0)].address();
+        }
+        else if (null != state.waitingBranch) {
+            address = state.waitingBranch.address();
+        }
+        else {
+            address = state.pc;
+        }
+        if (null != state.waitingBranch && stateNext.executedBranch != state.waitingBranch) {
+            ++branchStalls[Memory.addr2index(state.waitingBranch.address())];
+        }
+        int index = Memory.addr2index(address);
+        if (index < cycles.length) ++cycles[index];
+        else ++otherCycles;
+    }
+
+    /** The cycles the instruction at index stalled in Buf1 or held up fetch. */
+    public long stalls(int index) {
+        return buf1Cycles[index] - issued[index] + branchStalls[index];
+    }
+
+    public long totalCycles() {
+        long total = otherCycles;
+        for (long count : cycles) total += count;
+        return total;
+    }
+
+    protected String disassemble(int index) {
+        try {
+            return memory.fetchInstruction(Memory.index2addr(index)).disassemble();
+        }
+        catch (IllegalArgumentException e) {
+            return "?";
+        }
+    }
+
+    // The loops of the code segment, outer loops before the loops inside
+    // them, with their cycles.
+    public List<Loop> loops() {
+        Map<Integer, Loop> byStart = new HashMap<Integer, Loop>();
+        Instruction inst;
+        int target;
+        for (int addr = memory.minAddr(); addr < memory.dataStartAddr(); addr += 4) {
+            try {
+                inst = memory.fetchInstruction(addr);
+            }
+            catch (IllegalArgumentException e) {
+                continue;
+            }
+            switch (inst.type()) {
+                case J:
+                case BEQ:
+                case BNE:
+                case BGTZ:
+                    target = FunctionalSimulator.immediate(inst);
+                    if (target > addr || target < memory.minAddr()) continue;
+                    Loop loop = byStart.get(target);
+                    if (null == loop) byStart.put(target, new Loop(target, addr));
+                    else loop.end = addr;
+                    break;
+                default:
+            }
+        }
+        List<Loop> loops = new ArrayList<Loop>(byStart.values());
+        Collections.sort(loops, new Comparator<Loop>() {
+            public int compare(Loop a, Loop b) {
+                if (a.start != b.start) return Integer.compare(a.start, b.start);
+                return Integer.compare(b.end, a.end);
+            }
+        });
+        for (int k = 0; k < loops.size(); ++k) {
+            Loop loop = loops.get(k);
+            for (int j = k - 1; j >= 0; --j) {
+                if (loops.get(j).contains(loop.end)) {
+                    loop.parent = loops.get(j);
+                    break;
+                }
+            }
+            for (int addr = loop.start; addr <= loop.end; addr += 4) {
+                loop.cycles += cycles[Memory.addr2index(addr)];
+            }
+        }
+        return loops;
+    }
+
+    // The innermost of loops containing address, or null.
+    protected static Loop innermost(List<Loop> loops, int address) {
+        Loop found = null;
+        for (Loop loop : loops) {
+            if (loop.start > address) break;
+            if (loop.contains(address)) found = loop;
+        }
+        return found;
+    }
+
+    // The addresses of the instructions that were fetched or charged any
+    // cycles, most cycles first.
+    protected List<Integer> hotIndexes() {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int k = 0; k < cycles.length; ++k) {
+            if (0 != fetched[k] || 0 != cycles[k]) indexes.add(k);
+        }
+        Collections.sort(indexes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (cycles[a] != cycles[b]) return Long.compare(cycles[b], cycles[a]);
+                return Integer.compare(a, b);
+            }
+        });
+        return indexes;
+    }
+
+    // Writes the loops and then the instructions, each sorted by the cycles
+    // charged to them, as tab-separated columns.
+    public void writeReport(Appendable out) throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        long total = totalCycles();
+        List<Loop> loops = loops();
+        out.append(String.format("Cycles:\t%d", total)).append(newLine);
+        out.append(newLine).append("Loops").append(newLine);
+        out.append("Cycles\t%\tHead fetches\tDepth\tAddresses").append(newLine);
+        List<Loop> sorted = new ArrayList<Loop>(loops);
+        Collections.sort(sorted, new Comparator<Loop>() {
+            public int compare(Loop a, Loop b) {
+                if (a.cycles != b.cycles) return Long.compare(b.cycles, a.cycles);
+                return Integer.compare(a.start, b.start);
+            }
+        });
+        int depth;
+        for (Loop loop : sorted) {
+            depth = 0;
+            for (Loop outer = loop.parent; null != outer; outer = outer.parent) ++depth;
+            out.append(String.format("%d\t%.1f\t%d\t%d\t%d-%d",
+                loop.cycles, percent(loop.cycles, total), fetched[Memory.addr2index(loop.start)],
+                depth, loop.start, loop.end)).append(newLine);
+        }
+        out.append(newLine).append("Instructions").append(newLine);
+        out.append("Cycles\t%\tFetched\tIssued\tBuf1 cycles\tStalls\tAddress\tInstruction").append(newLine);
+        for (int k : hotIndexes()) {
+            out.append(String.format("%d\t%.1f\t%d\t%d\t%d\t%d\t%d\t%s",
+                cycles[k], percent(cycles[k], total), fetched[k], issued[k], buf1Cycles[k], stalls(k),
+                Memory.index2addr(k), disassemble(k))).append(newLine);
+        }
+    }
+
+    protected static double percent(long count, long total) {
+        return 0 == total ? 0 : 100.0 * count / total;
+    }
+
+    // Writes the cycles charged to each instruction in the folded stack
+    // format of flame graph tools: the loops around the instruction from
+    // the outermost, then the instruction, separated by semicolons, then
+    // the cycles.
+    public void writeFolded(Appendable out) throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        List<Loop> loops = loops();
+        List<String> frames = new ArrayList<String>();
+        int address;
+        for (int k = 0; k < cycles.length; ++k) {
+            if (0 == cycles[k]) continue;
+            address = Memory.index2addr(k);
+            frames.clear();
+            for (Loop loop = innermost(loops, address); null != loop; loop = loop.parent) {
+                frames.add(loop.name());
+            }
+            for (int j = frames.size() - 1; j >= 0; --j) {
+                out.append(frames.get(j)).append(';');
+            }
+            out.append(Integer.toString(address)).append(' ').append(disassemble(k).replace(';', ','));
+            out.append(' ').append(Long.toString(cycles[k])).append(newLine);
+        }
+        if (0 != otherCycles) out.append("other ").append(Long.toString(otherCycles)).append(newLine);
+    }
+}
+
+// Saves and restores the complete state of a Processor between cycles: the
+// pc, the cycle number, the registers and their await bits, every buffer
+// and latch with the operands of the instructions in flight, the branches,
+// and the words of memory the program has changed. Instructions are saved
+// as their addresses and decoded again from memory on restore. A restored
+// processor writes exactly the output the original would have written
+// after the checkpoint, starting at the saved output length.
+//
+// A checkpointer saves to its path every interval cycles, if interval is
+// positive, and at the end of the cycle after request() is called. Each
+// checkpoint is written to a temporary file that then replaces the last.
+class Checkpointer {
+    // Checkpoints start with MAGIC and VERSION, then the image word count and
+    // hash. Everything is big-endian.
+    static final int MAGIC = 0x4D534350;
+    static final int VERSION = 1;
+    // How long the shutdown hook waits for a checkpoint to be written.
+    static final long SHUTDOWN_WAIT_MILLIS = 10000;
+    // Saved in place of the address of a missing instruction.
+    static final int NO_INSTRUCTION = -1;
+
+    final String path;
+    final int interval;
+    protected volatile boolean requested;
+    // The number of checkpoints written, and whether the simulation has ended.
+    protected long saved;
+    protected boolean finished;
+
+    public Checkpointer(String path, int interval) {
+        this.path = path;
+        this.interval = interval;
+    }
+
+    // Called by Processor.simulate() after each cycle but the last.
+    void cycleDone(Processor proc, Appendable out) {
+        if (!requested && (interval <= 0 || 0 != (proc.cycle - 1) % interval)) return;
+        HostMetrics.CheckpointEvent event = new HostMetrics.CheckpointEvent();
+        event.path = path;
+        event.begin();
+        try {
+            // The output before the checkpoint must reach the file before the
+            // checkpoint does, since a restore truncates the output to it.
+            if (out instanceof Flushable) ((Flushable)out).flush();
+            save(proc, path);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write checkpoint: " + path);
+        }
+        if (null != proc.host) proc.host.commit(event);
+        synchronized (this) {
+            requested = false;
+            ++saved;
+            notifyAll();
+        }
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /** Asks for a checkpoint at the end of the current cycle. */
+    public void request() {
+        requested = true;
+    }
+
+    // Requests a checkpoint and waits up to millis for it to be written.
+    // Returns false if none was written because the simulation ended first or
+    // the time ran out.
+    public synchronized boolean requestAndWait(long millis) throws InterruptedException {
+        if (finished) return false;
+        long target = saved + 1;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long remaining;
+        request();
+        while (saved < target && !finished) {
+            remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return saved >= target;
+    }
+
+    // Saves a checkpoint when the JVM is asked to exit, as on SIGINT or
+    // SIGTERM, if the simulation is still running.
+    public void installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    requestAndWait(SHUTDOWN_WAIT_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    public static void save(Processor proc, String pathString) throws IOException {
+        Path path = Paths.get(pathString);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(temp), MIPSsim.OUTPUT_BUFFER_SIZE));
+        try {
+            write(proc, out);
+        }
+        finally {
+            out.close();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void restore(Processor proc, String pathString) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(Paths.get(pathString)), MIPSsim.OUTPUT_BUFFER_SIZE));
+        try {
+            read(proc, in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    // Writes the state of proc between cycles, when state and stateNext match.
+    public static void write(Processor proc, DataOutputStream out) throws IOException {
+        Memory memory = proc.memory;
+        ProcessorState state = proc.state;
+        InFlightTable inFlight = proc.inFlight;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(memory._image.limit());
+        out.writeLong(memory.imageHash());
+
+        out.writeInt(proc.cycle);
+        out.writeLong(proc.outputLength);
+        out.writeInt(state.pc);
+        int[] values = state.regFile.values();
+        for (int k = 0; k < RegisterFile.numRegisters; ++k) {
+            out.writeInt(values[k]);
+        }
+        out.writeLong(state.regFile.awaitMask());
+
+        writeRing(out, state.Buf1);
+        writeRing(out, state.Buf2);
+        writeRing(out, state.Buf3);
+        writeRing(out, state.Buf4);
+        writeRing(out, state.Buf5);
+        out.writeInt(state.Buf6);
+        out.writeInt(state.Buf7);
+        out.writeInt(state.Buf8);
+        out.writeInt(state.Buf9);
+        out.writeInt(state.Buf10);
+        out.writeInt(state.Buf11);
+        out.writeInt(state.Buf12);
+        out.writeInt(address(state.waitingBranch));
+        out.writeInt(address(state.executedBranch));
+
+        out.writeInt(inFlight.size());
+        for (int slot = 0; slot < inFlight.size(); ++slot) {
+            out.writeInt(address(inFlight.inst[slot]));
+            out.writeInt(inFlight.src1val[slot]);
+            out.writeInt(inFlight.src2val[slot]);
+            out.writeInt(inFlight.result[slot]);
+            out.writeInt(inFlight.hi[slot]);
+            out.writeInt(inFlight.data[slot]);
+        }
+        out.writeInt(inFlight.freeCount);
+        for (int k = 0; k < inFlight.freeCount; ++k) {
+            out.writeInt(inFlight.free[k]);
+        }
+
+        memory.writeChanges(out);
+    }
+
+    // Reads a checkpoint into proc, which must be new and over the same image.
+    public static void read(Processor proc, DataInputStream in) throws IOException {
+        Memory memory = proc.memory;
+        ProcessorState state = proc.state;
+        InFlightTable inFlight = proc.inFlight;
+        if (MAGIC != in.readInt()) throw new IOException("Not a checkpoint.");
+        int version = in.readInt();
+        if (VERSION != version) throw new IOException("Unsupported checkpoint version: " + version);
+        if (memory._image.limit() != in.readInt() || memory.imageHash() != in.readLong()) {
+            throw new IOException("The checkpoint was taken from a different image.");
+        }
+
+        proc.cycle = in.readInt();
+        proc.outputLength = in.readLong();
+        state.pc = in.readInt();
+        int[] values = new int[RegisterFile.numRegisters];
+        for (int k = 0; k < values.length; ++k) {
+            values[k] = in.readInt();
+        }
+        state.regFile.load(values, in.readLong());
+
+        readRing(in, state.Buf1);
+        readRing(in, state.Buf2);
+        readRing(in, state.Buf3);
+        readRing(in, state.Buf4);
+        readRing(in, state.Buf5);
+        state.Buf6 = in.readInt();
+        state.Buf7 = in.readInt();
+        state.Buf8 = in.readInt();
+        state.Buf9 = in.readInt();
+        state.Buf10 = in.readInt();
+        state.Buf11 = in.readInt();
+        state.Buf12 = in.readInt();
+        state.waitingBranch = branch(memory, in.readInt());
+        state.executedBranch = branch(memory, in.readInt());
+
+        if (inFlight.size() != in.readInt()) throw new IOException("The checkpoint has a different number of slots.");
+        int address;
+        for (int slot = 0; slot < inFlight.size(); ++slot) {
+            address = in.readInt();
+            inFlight.inst[slot] = NO_INSTRUCTION == address ? null : memory.fetchInstruction(address);
+            inFlight.src1val[slot] = in.readInt();
+            inFlight.src2val[slot] = in.readInt();
+            inFlight.result[slot] = in.readInt();
+            inFlight.hi[slot] = in.readInt();
+            inFlight.data[slot] = in.readInt();
+        }
+        int freeCount = in.readInt();
+        if (freeCount < 0 || freeCount > inFlight.size()) throw new IOException("Invalid free slot count: " + freeCount);
+        for (int k = 0; k < freeCount; ++k) {
+            inFlight.free[k] = in.readInt();
+        }
+        inFlight.freeCount = freeCount;
+
+        memory.readChanges(in);
+        state.updateBuf1Writes();
+        ProcessorState.copy(proc.stateNext, state);
+    }
+
+    protected static int address(Instruction inst) {
+        return null == inst ? NO_INSTRUCTION : inst.address();
+    }
+
+    protected static InstCat1 branch(Memory memory, int address) throws IOException {
+        if (NO_INSTRUCTION == address) return null;
+        Instruction inst = memory.fetchInstruction(address);
+        if (!(inst instanceof InstCat1)) throw new IOException("Not a branch at " + address);
+        return (InstCat1)inst;
+    }
+
+    // Writes the entries of buf that have not been removed, oldest first.
+    protected static void writeRing(DataOutputStream out, SlotRing buf) throws IOException {
+        int count = 0;
+        for (int k = 0, end = buf.size(); k < end; ++k) {
+            if (SlotRing.EMPTY != buf.get(k)) ++count;
+        }
+        out.writeInt(count);
+        int slot;
+        for (int k = 0, end = buf.size(); k < end; ++k) {
+            slot = buf.get(k);
+            if (SlotRing.EMPTY != slot) out.writeInt(slot);
+        }
+    }
+
+    protected static void readRing(DataInputStream in, SlotRing buf) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > buf.capacity()) throw new IOException("Invalid buffer size: " + count);
+        buf.clear();
+        for (int k = 0; k < count; ++k) {
+            buf.push(in.readInt());
+        }
+    }
+}
+
+// Renders cycle snapshots into a reusable character buffer. Numbers are
+// written digit by digit and the disassembly of each address is converted to
+// characters once, so rendering a cycle does not allocate.
+class SnapshotRenderer {
+    protected static final String SEPARATOR = "--------------------";
+    protected static final String[] GPR_LABELS = {"R00:", "R08:", "R16:", "R24:"};
+    protected static final String[] BUF_NAMES = {"Buf1:", "Buf2:", "Buf3:", "Buf4:", "Buf5:"};
+    protected static final String NULL_VALUE = "null";
+
+    protected final Memory memory;
+    protected final String newLine = MIPSsim.LINE_SEP;
+
+    protected char[] _chars = new char[4096];
+    protected int _length;
+    protected CharBuffer _view = CharBuffer.wrap(_chars);
+
+    // The disassembly of each code-segment address, indexed by addr2index,
+    // along with the word it was produced from.
+    protected char[][] _disassembly;
+    protected int[] _disassemblyWord;
+
+    public SnapshotRenderer(Memory memory) {
+        this.memory = memory;
+        int codeWords = Math.max(0, Memory.addr2index(memory.dataStartAddr()));
+        _disassembly = new char[codeWords][];
+        _disassemblyWord = new int[codeWords];
+    }
+
+    /** The number of characters rendered. */
+    public int length() {
+        return _length;
+    }
+
+    public String toString() {
+        return new String(_chars, 0, _length);
+    }
+
+    /** Writes the first end characters of the rendered text to out. */
+    public void writeTo(Appendable out, int end) throws IOException {
+        if (out instanceof Writer) {
+            ((Writer)out).write(_chars, 0, end);
+        }
+        else if (out instanceof StringBuilder) {
+            ((StringBuilder)out).append(_chars, 0, end);
+        }
+        else {
+            out.append(_view, 0, end);
+        }
+    }
+
+    public void writeTo(Appendable out) throws IOException {
+        writeTo(out, _length);
+    }
+
+    protected void ensure(int extra) {
+        if (_length + extra <= _chars.length) return;
+        int size = _chars.length;
+        while (size < _length + extra) size *= 2;
+        _chars = Arrays.copyOf(_chars, size);
+        _view = CharBuffer.wrap(_chars);
+    }
+
+    protected void append(char c) {
+        ensure(1);
+        _chars[_length++] = c;
+    }
+
+    protected void append(String str) {
+        int len = str.length();
+        ensure(len);
+        str.getChars(0, len, _chars, _length);
+        _length += len;
+    }
+
+    protected void append(char[] chars) {
+        ensure(chars.length);
+        System.arraycopy(chars, 0, _chars, _length, chars.length);
+        _length += chars.length;
+    }
+
+    protected void appendInt(int value) {
+        if (Integer.MIN_VALUE == value) {
+            append("-2147483648");
+            return;
+        }
+        ensure(11);
+        if (value < 0) {
+            _chars[_length++] = '-';
+            value = -value;
+        }
+        int start = _length;
+        do {
+            _chars[_length++] = (char)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // The digits were written least significant first.
+        for (int left = start, right = _length - 1; left < right; ++left, --right) {
+            char tmp = _chars[left];
+            _chars[left] = _chars[right];
+            _chars[right] = tmp;
+        }
+    }
+
+    protected void appendDisassembly(Instruction inst) {
+        int index = Memory.addr2index(inst.address());
+        if (index < 0 || index >= _disassembly.length) {
+            append(inst.disassemble());
+            return;
+        }
+        if (null == _disassembly[index] || _disassemblyWord[index] != inst.word()) {
+            _disassembly[index] = inst.disassemble().toCharArray();
+            _disassemblyWord[index] = inst.word();
+        }
+        append(_disassembly[index]);
+    }
+
+    // Appends " [disassembly]" and a new line, or just the new line when inst
+    // is null.
+    protected void appendEntry(Instruction inst) {
+        if (null != inst) {
+            append(" [");
+            appendDisassembly(inst);
+            append(']');
+        }
+        append(newLine);
+    }
+
+    protected void appendBuffer(InFlightTable inFlight, SlotRing buf, String name) {
+        append(name);
+        append(newLine);
+        int size = buf.size();
+        for (int k = 0; k < buf.capacity(); ++k) {
+            append("\tEntry ");
+            appendInt(k);
+            append(':');
+            appendEntry(k < size ? inFlight.inst[buf.get(k)] : null);
+        }
+    }
+
+    protected void appendLatch(InFlightTable inFlight, int slot) {
+        appendEntry(SlotRing.EMPTY == slot ? null : inFlight.inst[slot]);
+    }
+
+    protected void appendRegisters(int[] registers) {
+        append("Registers");
+        append(newLine);
+        for (int k = 0; k < RegisterFile.numGprs; k += 8) {
+            append(GPR_LABELS[k / 8]);
+            for (int j = k; j < k + 8; ++j) {
+                append('\t');
+                appendInt(registers[j]);
+            }
+            append(newLine);
+        }
+        append("HI:\t");
+        appendInt(registers[RegisterFile.HI_INDEX]);
+        append(newLine);
+        append("LO:\t");
+        appendInt(registers[RegisterFile.LO_INDEX]);
+        append(newLine);
+    }
+
+    protected void appendData() {
+        append("Data");
+        append(newLine);
+        int maxAddr = memory.maxAddr();
+        for (int addr = memory.dataStartAddr(); addr < maxAddr; addr += 32) {
+            appendInt(addr);
+            append(':');
+            // Rows past the end of memory are padded the same way String.join
+            // printed the unfilled entries of the old row array.
+            for (int k = 0; k < 8; ++k) {
+                append('\t');
+                if (addr + 4 * k < maxAddr) appendInt(memory.fetch(addr + 4 * k));
+                else append(NULL_VALUE);
+            }
+            append(newLine);
+        }
+    }
+
+    /** Renders the architectural state left by a functional run, replacing any earlier contents. */
+    public SnapshotRenderer renderFinalState(FunctionalSimulator sim) {
+        _length = 0;
+        append("Instructions:\t");
+        append(Long.toString(sim.instructionCount()));
+        append(newLine);
+        append("PC:\t");
+        appendInt(sim.pc());
+        append(newLine);
+        append(newLine);
+        appendRegisters(sim.registers());
+        append(newLine);
+        appendData();
+        return this;
+    }
+
+    /** Renders the snapshot of state, replacing any earlier contents. */
+    public SnapshotRenderer render(ProcessorState state, int cycle) {
+        _length = 0;
+        append(SEPARATOR);
+        append(newLine);
+        append("Cycle ");
+        appendInt(cycle);
+        append(':');
+        append(newLine);
+        append(newLine);
+
+        append("IF:");
+        append(newLine);
+        append("\tWaiting:");
+        appendEntry(state.waitingBranch);
+        append("\tExecuted:");
+        appendEntry(state.executedBranch);
+
+        InFlightTable inFlight = state.inFlight;
+        appendBuffer(inFlight, state.Buf1, BUF_NAMES[0]);
+        appendBuffer(inFlight, state.Buf2, BUF_NAMES[1]);
+        appendBuffer(inFlight, state.Buf3, BUF_NAMES[2]);
+        appendBuffer(inFlight, state.Buf4, BUF_NAMES[3]);
+        appendBuffer(inFlight, state.Buf5, BUF_NAMES[4]);
+
+        append("Buf6:");
+        appendLatch(inFlight, state.Buf6);
+
+        int slot = state.Buf7;
+        append("Buf7:");
+        if (SlotRing.EMPTY != slot) {
+            append(" [");
+            appendInt(inFlight.hi[slot]);
+            append(", ");
+            appendInt(inFlight.result[slot]);
+            append(']');
+        }
+        append(newLine);
+
+        append("Buf8:");
+        appendLatch(inFlight, state.Buf8);
+
+        slot = state.Buf9;
+        append("Buf9:");
+        if (SlotRing.EMPTY != slot) {
+            append(" [");
+            appendInt(inFlight.result[slot]);
+            append(", R");
+            appendInt(inFlight.inst[slot].dest());
+            append(']');
+        }
+        append(newLine);
+
+        slot = state.Buf10;
+        append("Buf10:");
+        if (SlotRing.EMPTY != slot) {
+            append(" [");
+            appendInt(inFlight.data[slot]);
+            append(", R");
+            appendInt(inFlight.inst[slot].dest());
+            append(']');
+        }
+        append(newLine);
+
+        append("Buf11:");
+        appendLatch(inFlight, state.Buf11);
+
+        slot = state.Buf12;
+        append("Buf12:");
+        if (SlotRing.EMPTY != slot) {
+            append(" [");
+            appendInt(inFlight.result[slot]);
+            append(']');
+        }
+        append(newLine);
+
+        append(newLine);
+        appendRegisters(state.regFile.values());
+        append(newLine);
+        appendData();
+        return this;
+    }
+}
+
+// The parts of a ProcessorState that a snapshot shows, as numbers: the
+// address of the instruction in each branch slot, buffer entry and latch,
+// the values shown for Buf7, Buf9, Buf10 and Buf12, and the registers. The
+// data segment is not included. capture() records which of them changed
+// since the last capture, and apply() builds a state that renders the same.
+class SnapshotView {
+    // The entries are the waiting and executed branches, the positions of
+    // Buf1-Buf5, then the latches Buf6-Buf12.
+    static final int ENTRIES = 2 + 8 + 4 * 2 + 7;
+    static final int BUF1_ENTRY = 2;
+    static final int BUF6_ENTRY = ENTRIES - 7;
+    static final int VALUES = 5;
+    // The address of an entry that holds no instruction.
+    static final int NONE = -1;
+
+    final int[] entries = new int[ENTRIES];
+    final int[] values = new int[VALUES];
+    final int[] registers = new int[RegisterFile.numRegisters];
+    // A bit for each entry, value and register changed by the last capture.
+    // The first capture changes them all.
+    int entryChanges;
+    int valueChanges;
+    long registerChanges;
+    protected boolean captured;
+
+    public SnapshotView() {
+        Arrays.fill(entries, NONE);
+    }
+
+    /** Records what a snapshot of state shows. Returns true if anything changed. */
+    public boolean capture(ProcessorState state) {
+        entryChanges = 0;
+        valueChanges = 0;
+        registerChanges = 0;
+        InFlightTable inFlight = state.inFlight;
+        entry(0, address(state.waitingBranch));
+        entry(1, address(state.executedBranch));
+        int n = BUF1_ENTRY;
+        n = buffer(n, inFlight, state.Buf1);
+        n = buffer(n, inFlight, state.Buf2);
+        n = buffer(n, inFlight, state.Buf3);
+        n = buffer(n, inFlight, state.Buf4);
+        n = buffer(n, inFlight, state.Buf5);
+        latch(n++, inFlight, state.Buf6);
+        latch(n++, inFlight, state.Buf7);
+        latch(n++, inFlight, state.Buf8);
+        latch(n++, inFlight, state.Buf9);
+        latch(n++, inFlight, state.Buf10);
+        latch(n++, inFlight, state.Buf11);
+        latch(n, inFlight, state.Buf12);
+
+        value(0, state.Buf7, inFlight.hi);
+        value(1, state.Buf7, inFlight.result);
+        value(2, state.Buf9, inFlight.result);
+        value(3, state.Buf10, inFlight.data);
+        value(4, state.Buf12, inFlight.result);
+
+        int[] current = state.regFile.values();
+        for (int k = 0; k < RegisterFile.numRegisters; ++k) {
+            if (registers[k] != current[k]) {
+                registers[k] = current[k];
+                registerChanges |= 1L << k;
+            }
+        }
+        if (!captured) {
+            captured = true;
+            entryChanges = (1 << ENTRIES) - 1;
+            valueChanges = (1 << VALUES) - 1;
+            registerChanges = (1L << RegisterFile.numRegisters) - 1;
+        }
+        return 0 != entryChanges || 0 != valueChanges || 0 != registerChanges;
+    }
+
+    protected static int address(Instruction inst) {
+        return null == inst ? NONE : inst.address();
+    }
+
+    protected void entry(int n, int address) {
+        if (entries[n] != address) {
+            entries[n] = address;
+            entryChanges |= 1 << n;
+        }
+    }
+
+    protected int buffer(int n, InFlightTable inFlight, SlotRing buf) {
+        int size = buf.size();
+        for (int k = 0; k < buf.capacity(); ++k) {
+            entry(n++, k < size ? inFlight.inst[buf.get(k)].address() : NONE);
+        }
+        return n;
+    }
+
+    protected void latch(int n, InFlightTable inFlight, int slot) {
+        entry(n, SlotRing.EMPTY == slot ? NONE : inFlight.inst[slot].address());
+    }
+
+    protected void value(int n, int slot, int[] column) {
+        int value = SlotRing.EMPTY == slot ? 0 : column[slot];
+        if (values[n] != value) {
+            values[n] = value;
+            valueChanges |= 1 << n;
+        }
+    }
+
+    // Sets up state, whose in-flight table is its own, so that rendering it
+    // shows this view. Each buffer entry and latch gets the slot numbered
+    // after its entry, and instructions are decoded from memory.
+    public void apply(ProcessorState state, Memory memory) {
+        state.waitingBranch = branch(memory, entries[0]);
+        state.executedBranch = branch(memory, entries[1]);
+        InFlightTable inFlight = state.inFlight;
+        for (int n = BUF1_ENTRY; n < ENTRIES; ++n) {
+            inFlight.inst[n - BUF1_ENTRY] = NONE == entries[n] ? null : memory.fetchInstruction(entries[n]);
+        }
+        int n = BUF1_ENTRY;
+        n = fill(n, state.Buf1);
+        n = fill(n, state.Buf2);
+        n = fill(n, state.Buf3);
+        n = fill(n, state.Buf4);
+        n = fill(n, state.Buf5);
+        state.Buf6 = slot(n++);
+        state.Buf7 = slot(n++);
+        state.Buf8 = slot(n++);
+        state.Buf9 = slot(n++);
+        state.Buf10 = slot(n++);
+        state.Buf11 = slot(n++);
+        state.Buf12 = slot(n);
+
+        if (SlotRing.EMPTY != state.Buf7) {
+            inFlight.hi[state.Buf7] = values[0];
+            inFlight.result[state.Buf7] = values[1];
+        }
+        if (SlotRing.EMPTY != state.Buf9) inFlight.result[state.Buf9] = values[2];
+        if (SlotRing.EMPTY != state.Buf10) inFlight.data[state.Buf10] = values[3];
+        if (SlotRing.EMPTY != state.Buf12) inFlight.result[state.Buf12] = values[4];
+        state.regFile.load(registers, 0);
+    }
+
+    protected static InstCat1 branch(Memory memory, int address) {
+        return NONE == address ? null : (InstCat1)memory.fetchInstruction(address);
+    }
+
+    protected int fill(int n, SlotRing buf) {
+        buf.clear();
+        for (int k = 0; k < buf.capacity(); ++k, ++n) {
+            if (NONE != entries[n]) buf.push(n - BUF1_ENTRY);
+        }
+        return n;
+    }
+
+    protected int slot(int n) {
+        return NONE == entries[n] ? SlotRing.EMPTY : n - BUF1_ENTRY;
+    }
+}
+
+// Chooses the cycles whose snapshots simulate() writes. A cycle is written
+// only if it passes every test that is set: it is inside one of the cycle
+// ranges, it is a multiple of interval, it is the last cycle, or something a
+// snapshot shows has changed since the last snapshot written. The tests only
+// compare numbers, so a skipped cycle renders nothing.
+class SnapshotFilter {
+    // Inclusive cycle ranges as start and end pairs, sorted and merged, or
+    // null for every cycle. An open range ends at Integer.MAX_VALUE.
+    protected int[] ranges;
+    // The first range that does not end before the cycles being asked about,
+    // which only increase.
+    protected int range;
+    // Write every interval-th cycle, or every cycle if not positive.
+    int interval;
+    boolean lastOnly;
+    boolean changesOnly;
+
+    // What the last snapshot written showed, for changesOnly, and the
+    // memory and data version it was written with.
+    protected final SnapshotView view = new SnapshotView();
+    protected Memory memory;
+    protected long dataVersion;
+
+    // Sets the ranges from a list such as "1-100,250,400-", where a range
+    // with no end runs to the last cycle.
+    public void setRanges(String spec) throws IllegalArgumentException {
+        String[] parts = spec.split(",");
+        long[] sorted = new long[parts.length];
+        String part;
+        int dash, start, end;
+        for (int k = 0; k < parts.length; ++k) {
+            part = parts[k].trim();
+            dash = part.indexOf('-');
+            try {
+                if (dash < 0) {
+                    start = end = Integer.parseInt(part);
+                }
+                else {
+                    start = Integer.parseInt(part.substring(0, dash));
+                    end = dash == part.length() - 1 ? Integer.MAX_VALUE : Integer.parseInt(part.substring(dash + 1));
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cycle range: " + part);
+            }
+            if (start < 1 || end < start) throw new IllegalArgumentException("Invalid cycle range: " + part);
+            sorted[k] = (long)start << 32 | end;
+        }
+        Arrays.sort(sorted);
+        int[] merged = new int[2 * sorted.length];
+        int count = 0;
+        for (long pair : sorted) {
+            start = (int)(pair >>> 32);
+            end = (int)pair;
+            if (count > 0 && (long)start <= merged[count - 1] + 1L) {
+                merged[count - 1] = Math.max(merged[count - 1], end);
+            }
+            else {
+                merged[count++] = start;
+                merged[count++] = end;
+            }
+        }
+        ranges = Arrays.copyOf(merged, count);
+        range = 0;
+    }
+
+    /** Whether to write the snapshot of state for cycle, which is the last if last is set. */
+    public boolean accept(ProcessorState state, Memory memory, int cycle, boolean last) {
+        if (lastOnly && !last) return false;
+        if (interval > 0 && 0 != cycle % interval) return false;
+        if (null != ranges && !inRanges(cycle)) return false;
+        if (changesOnly && !update(state, memory)) return false;
+        return true;
+    }
+
+    protected boolean inRanges(int cycle) {
+        while (range < ranges.length && ranges[range + 1] < cycle) range += 2;
+        return range < ranges.length && ranges[range] <= cycle;
+    }
+
+    // Records what a snapshot of state would show and returns whether it
+    // differs from the last one recorded.
+    protected boolean update(ProcessorState state, Memory memory) {
+        boolean changed = view.capture(state);
+        if (this.memory != memory || dataVersion != memory.dataVersion()) {
+            this.memory = memory;
+            dataVersion = memory.dataVersion();
+            changed = true;
+        }
+        return changed;
+    }
+}
+
+// Records a pipeline simulation as a binary trace, far smaller than the text
+// since each cycle is a delta of the SnapshotView and data words that
+// changed since the cycle before. Every keyframeInterval cycles a keyframe
+// holds the whole view and every changed word of memory instead, and an
+// index of the keyframes lets TraceReader start at any of them.
+//
+// A trace starts with MAGIC, VERSION, the image word count and hash, and the
+// keyframe interval. The records follow, then the index: the number of
+// keyframes and the cycle and file offset of each. The file ends with the
+// last cycle, the offset of the index and MAGIC again. Everything is
+// big-endian.
+class TraceWriter {
+    static final int MAGIC = 0x4D535452;
+    static final int VERSION = 1;
+    static final int DEFAULT_KEYFRAME_INTERVAL = 1024;
+    static final int TRAILER_SIZE = 16;
+
+    // The first byte of a record. A keyframe is the cycle number, every entry,
+    // value and register, then Memory.writeChanges(). A delta has a bit for
+    // each part that changed, and holds only those parts: a mask of the
+    // changed entries, values or registers followed by their new values, or
+    // the number of changed data words followed by their addresses and values.
+    static final int KEYFRAME = 0x80;
+    static final int ENTRY_CHANGES = 1;
+    static final int VALUE_CHANGES = 1 << 1;
+    static final int REGISTER_CHANGES = 1 << 2;
+    static final int DATA_CHANGES = 1 << 3;
+
+    // Counts the bytes written so keyframe offsets are known.
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    protected final Memory memory;
+    protected final int keyframeInterval;
+    protected final CountingOutputStream counter;
+    protected final DataOutputStream out;
+    protected final SnapshotView view = new SnapshotView();
+    protected int records;
+    protected int lastCycle;
+    protected int keyCount;
+    protected int[] keyCycles = new int[16];
+    protected long[] keyOffsets = new long[16];
+
+    public TraceWriter(String pathString, Memory memory, int keyframeInterval) throws IOException {
+        this.memory = memory;
+        this.keyframeInterval = keyframeInterval;
+        counter = new CountingOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(Paths.get(pathString)), MIPSsim.OUTPUT_BUFFER_SIZE));
+        out = new DataOutputStream(counter);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(memory._image.limit());
+        out.writeLong(memory.imageHash());
+        out.writeInt(keyframeInterval);
+        memory.logChanges();
+    }
+
+    /** Records the snapshot of state for cycle, which follows the last recorded. */
+    public void record(ProcessorState state, int cycle) throws IOException {
+        view.capture(state);
+        if (0 == records++ % keyframeInterval) {
+            keyframe(cycle);
+        }
+        else {
+            delta();
+        }
+        memory.clearChangeLog();
+        lastCycle = cycle;
+    }
+
+    protected void keyframe(int cycle) throws IOException {
+        if (keyCount == keyCycles.length) {
+            keyCycles = Arrays.copyOf(keyCycles, 2 * keyCount);
+            keyOffsets = Arrays.copyOf(keyOffsets, 2 * keyCount);
+        }
+        keyCycles[keyCount] = cycle;
+        keyOffsets[keyCount++] = counter.count;
+        out.writeByte(KEYFRAME);
+        out.writeInt(cycle);
+        for (int k = 0; k < SnapshotView.ENTRIES; ++k) {
+            out.writeInt(view.entries[k]);
+        }
+        for (int k = 0; k < SnapshotView.VALUES; ++k) {
+            out.writeInt(view.values[k]);
+        }
+        for (int k = 0; k < RegisterFile.numRegisters; ++k) {
+            out.writeInt(view.registers[k]);
+        }
+        memory.writeChanges(out);
+    }
+
+    protected void delta() throws IOException {
+        int count = memory.changeCount();
+        int kind = 0;
+        if (0 != view.entryChanges) kind |= ENTRY_CHANGES;
+        if (0 != view.valueChanges) kind |= VALUE_CHANGES;
+        if (0 != view.registerChanges) kind |= REGISTER_CHANGES;
+        if (0 != count) kind |= DATA_CHANGES;
+        out.writeByte(kind);
+        int mask;
+        if (0 != view.entryChanges) {
+            out.writeInt(view.entryChanges);
+            for (mask = view.entryChanges; 0 != mask; mask &= mask - 1) {
+                out.writeInt(view.entries[Integer.numberOfTrailingZeros(mask)]);
+            }
+        }
+        if (0 != view.valueChanges) {
+            out.writeByte(view.valueChanges);
+            for (mask = view.valueChanges; 0 != mask; mask &= mask - 1) {
+                out.writeInt(view.values[Integer.numberOfTrailingZeros(mask)]);
+            }
+        }
+        if (0 != view.registerChanges) {
+            out.writeLong(view.registerChanges);
+            for (long registers = view.registerChanges; 0 != registers; registers &= registers - 1) {
+                out.writeInt(view.registers[Long.numberOfTrailingZeros(registers)]);
+            }
+        }
+        if (0 != count) {
+            out.writeInt(count);
+            int[] log = memory.changeLog();
+            for (int k = 0; k < count; ++k) {
+                out.writeInt(log[k]);
+                out.writeInt(memory.fetch(log[k]));
+            }
+        }
+    }
+
+    /** Writes the index and closes the file. */
+    public void close() throws IOException {
+        try {
+            long indexOffset = counter.count;
+            out.writeInt(keyCount);
+            for (int k = 0; k < keyCount; ++k) {
+                out.writeInt(keyCycles[k]);
+                out.writeLong(keyOffsets[k]);
+            }
+            out.writeInt(lastCycle);
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
+
+// Regenerates the text snapshots of any cycles of a trace written by
+// TraceWriter, given the image it was recorded over. Reading starts at the
+// last keyframe at or before the first cycle wanted.
+class TraceReader {
+    // The memory the trace was recorded over. It is never changed; each
+    // keyframe read after a seek starts a new Memory over the same image.
+    protected final Memory image;
+    protected final FileChannel channel;
+    protected final int keyframeInterval;
+    protected final int lastCycle;
+    protected final int[] keyCycles;
+    protected final long[] keyOffsets;
+
+    protected DataInputStream in;
+    protected Memory memory;
+    protected SnapshotRenderer renderer;
+    protected final SnapshotView view = new SnapshotView();
+    protected final ProcessorState state = new ProcessorState(new InFlightTable(ProcessorState.SLOTS));
+    // The cycle of the last record read, or 0 before the first.
+    protected int cycle;
+
+    public TraceReader(Memory image, String pathString) throws IOException {
+        this.image = image;
+        channel = FileChannel.open(Paths.get(pathString), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer header = read(0, 24);
+            if (TraceWriter.MAGIC != header.getInt()) throw new IOException("Not a trace: " + pathString);
+            int version = header.getInt();
+            if (TraceWriter.VERSION != version) throw new IOException("Unsupported trace version: " + version);
+            if (image._image.limit() != header.getInt() || image.imageHash() != header.getLong()) {
+                throw new IOException("The trace was recorded over a different image.");
+            }
+            keyframeInterval = header.getInt();
+
+            ByteBuffer trailer = read(size - TraceWriter.TRAILER_SIZE, TraceWriter.TRAILER_SIZE);
+            lastCycle = trailer.getInt();
+            long indexOffset = trailer.getLong();
+            if (TraceWriter.MAGIC != trailer.getInt() || indexOffset < 0 || indexOffset > size - TraceWriter.TRAILER_SIZE - 4) {
+                throw new IOException("Truncated trace: " + pathString);
+            }
+            int count = read(indexOffset, 4).getInt();
+            if (count < 1 || 4 + 12L * count != size - TraceWriter.TRAILER_SIZE - indexOffset) {
+                throw new IOException("Invalid trace index: " + pathString);
+            }
+            ByteBuffer index = read(indexOffset + 4, 12 * count);
+            keyCycles = new int[count];
+            keyOffsets = new long[count];
+            for (int k = 0; k < count; ++k) {
+                keyCycles[k] = index.getInt();
+                keyOffsets[k] = index.getLong();
+            }
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    protected ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0);
+        if (buffer.hasRemaining()) throw new IOException("Truncated trace.");
+        buffer.flip();
+        return buffer;
+    }
+
+    public int firstCycle() {
+        return keyCycles[0];
+    }
+
+    public int lastCycle() {
+        return lastCycle;
+    }
+
+    /** Reads up to the record of target, from the last keyframe before it unless reading on is shorter. */
+    public void seek(int target) throws IOException, IllegalArgumentException {
+        if (target < firstCycle() || target > lastCycle) {
+            throw new IllegalArgumentException("Cycle not in trace: " + target);
+        }
+        int k = Arrays.binarySearch(keyCycles, target);
+        if (k < 0) k = -k - 2;
+        if (null == in || target < cycle || keyCycles[k] > cycle) {
+            in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(keyOffsets[k])), MIPSsim.OUTPUT_BUFFER_SIZE));
+            memory = new Memory(image._image, image.entryAddr(), image.dataStartAddr());
+            renderer = new SnapshotRenderer(memory);
+            next();
+        }
+        while (cycle < target) next();
+    }
+
+    // Reads the next record into the view and memory.
+    protected void next() throws IOException {
+        int kind = in.readUnsignedByte();
+        if (TraceWriter.KEYFRAME == kind) {
+            cycle = in.readInt();
+            for (int k = 0; k < SnapshotView.ENTRIES; ++k) {
+                view.entries[k] = in.readInt();
+            }
+            for (int k = 0; k < SnapshotView.VALUES; ++k) {
+                view.values[k] = in.readInt();
+            }
+            for (int k = 0; k < RegisterFile.numRegisters; ++k) {
+                view.registers[k] = in.readInt();
+            }
+            memory.readChanges(in);
+            return;
+        }
+        if (0 != (kind & ~(TraceWriter.ENTRY_CHANGES | TraceWriter.VALUE_CHANGES
+                | TraceWriter.REGISTER_CHANGES | TraceWriter.DATA_CHANGES))) {
+            throw new IOException("Invalid trace record after cycle " + cycle);
+        }
+        ++cycle;
+        int mask;
+        if (0 != (kind & TraceWriter.ENTRY_CHANGES)) {
+            for (mask = in.readInt() & ((1 << SnapshotView.ENTRIES) - 1); 0 != mask; mask &= mask - 1) {
+                view.entries[Integer.numberOfTrailingZeros(mask)] = in.readInt();
+            }
+        }
+        if (0 != (kind & TraceWriter.VALUE_CHANGES)) {
+            for (mask = in.readUnsignedByte() & ((1 << SnapshotView.VALUES) - 1); 0 != mask; mask &= mask - 1) {
+                view.values[Integer.numberOfTrailingZeros(mask)] = in.readInt();
+            }
+        }
+        if (0 != (kind & TraceWriter.REGISTER_CHANGES)) {
+            long registers = in.readLong() & ((1L << RegisterFile.numRegisters) - 1);
+            for (; 0 != registers; registers &= registers - 1) {
+                view.registers[Long.numberOfTrailingZeros(registers)] = in.readInt();
+            }
+        }
+        if (0 != (kind & TraceWriter.DATA_CHANGES)) {
+            for (int count = in.readInt(); count > 0; --count) {
+                memory.store(in.readInt(), in.readInt());
+            }
+        }
+    }
+
+    /** The text of the snapshot of cycle, as Processor.cycleSnapshot() returned it. */
+    public String snapshot(int cycle) throws IOException {
+        seek(cycle);
+        view.apply(state, memory);
+        return renderer.render(state, cycle).toString();
+    }
+
+    // Writes the snapshots of the cycles filter accepts, or of every cycle
+    // if filter is null, in the same form as Processor.simulate(). Only the
+    // cycles inside the filter's ranges are read, if it has any. Returns the
+    // number of snapshots written.
+    public int write(Appendable out, SnapshotFilter filter) throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        int[] ranges = null == filter || null == filter.ranges ? new int[] {firstCycle(), lastCycle} : filter.ranges;
+        int written = 0;
+        int start, end;
+        for (int k = 0; k < ranges.length; k += 2) {
+            start = Math.max(ranges[k], firstCycle());
+            end = Math.min(ranges[k + 1], lastCycle);
+            if (start > end) continue;
+            seek(start);
+            while (true) {
+                view.apply(state, memory);
+                if (null == filter || filter.accept(state, memory, cycle, lastCycle == cycle)) {
+                    if (written++ > 0) out.append(newLine);
+                    renderer.render(state, cycle);
+                    renderer.writeTo(out, renderer.length() - newLine.length());
+                }
+                if (cycle == end) break;
+                next();
+            }
+        }
+        return written;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// Takes the cycles of a simulation to render and write them elsewhere. Each
+// cycle must be captured, even those not to be written, since it may have
+// changed memory.
+interface SnapshotSink {
+    /** Takes the cycle just simulated, whose snapshot is written if render is set. */
+    void capture(ProcessorState state, int cycle, boolean render) throws IOException;
+
+    /** Waits for every captured snapshot to be written. */
+    void close() throws IOException;
+}
+
+// Renders and writes snapshots on a thread of its own, so the simulation
+// does not wait on formatting or disk. For each cycle the simulation only
+// copies a Record into a ring of preallocated records: the SnapshotView of
+// the cycle, if it is to be written, and the data words the cycle changed.
+// The writer thread applies the changes to its own copy of memory, renders
+// the view and writes it to out.
+//
+// The ring holds capacity records. When it is full the simulation waits for
+// the writer, so capacity bounds how far the simulation can run ahead and
+// how much memory the records use. Each side parks only when it has nothing
+// to do. To keep wakeups rare, a parked writer is only woken once a quarter
+// of the ring is full, and a parked simulation once half of it is free.
+class AsyncSnapshotWriter implements SnapshotSink {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    // What a writer thread needs of one cycle.
+    static class Record {
+        int cycle;
+        boolean render;
+        final SnapshotView view = new SnapshotView();
+        // The address and new value of each data word changed in the cycle.
+        int[] changes = new int[16];
+        int changeCount;
+
+        // Copies the cycle from state and the change log of memory, which
+        // is then cleared.
+        void capture(ProcessorState state, Memory memory, int cycle, boolean render) {
+            this.cycle = cycle;
+            this.render = render;
+            if (render) view.capture(state);
+            int count = memory.changeCount();
+            if (changes.length < 2 * count) changes = new int[2 * count];
+            int[] log = memory.changeLog();
+            for (int k = 0; k < count; ++k) {
+                changes[2 * k] = log[k];
+                changes[2 * k + 1] = memory.fetch(log[k]);
+            }
+            changeCount = count;
+            memory.clearChangeLog();
+        }
+
+        // Applies the changes to memory and, if the cycle is to be written,
+        // renders it with renderer, which renders memory.
+        void replay(Memory memory, ProcessorState state, SnapshotRenderer renderer) {
+            for (int k = 0; k < 2 * changeCount; k += 2) {
+                memory.store(changes[k], changes[k + 1]);
+            }
+            if (!render) return;
+            view.apply(state, memory);
+            renderer.render(state, cycle);
+        }
+    }
+
+    protected final Memory memory;
+    protected final Writer out;
+    protected final Record[] ring;
+    protected final int mask;
+    protected final int wakeWriter;
+    protected final int wakeSimulation;
+    // Records are filled at tail and written from head. Each is only moved
+    // by one thread.
+    protected volatile long head;
+    protected volatile long tail;
+    protected volatile boolean closed;
+    protected volatile boolean producerParked;
+    protected volatile boolean consumerParked;
+    protected volatile IOException error;
+    protected Thread producer;
+    protected final Thread consumer;
+
+    // The writer thread's copy of memory, and the state it renders.
+    protected final Memory shadow;
+    protected final ProcessorState state = new ProcessorState(new InFlightTable(ProcessorState.SLOTS));
+    protected final SnapshotRenderer renderer;
+    protected boolean written;
+
+    public AsyncSnapshotWriter(Memory memory, Writer out, int capacity) {
+        this.memory = memory;
+        this.out = out;
+        int length = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = new Record[length];
+        for (int k = 0; k < length; ++k) {
+            ring[k] = new Record();
+        }
+        mask = length - 1;
+        wakeWriter = Math.max(1, length / 4);
+        wakeSimulation = length / 2;
+
+        // The shadow starts with the words already changed, as after a
+        // fast-forward or a restore.
+        shadow = memory.copy();
+        renderer = new SnapshotRenderer(shadow);
+        memory.logChanges();
+
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "snapshot-writer");
+        consumer.start();
+    }
+
+    /**
+     * Hands the cycle to the writer thread, which writes its snapshot if
+     * render is set. Throws the writer's exception if it has failed.
+     */
+    public void capture(ProcessorState state, int cycle, boolean render) throws IOException {
+        if (!render && 0 == memory.changeCount()) return;
+        long tail = this.tail;
+        while (tail - head >= ring.length) {
+            if (null != error) throw error;
+            if (null == producer) producer = Thread.currentThread();
+            producerParked = true;
+            if (tail - head >= ring.length && null == error) LockSupport.park(this);
+            producerParked = false;
+        }
+        ring[(int)tail & mask].capture(state, memory, cycle, render);
+        this.tail = ++tail;
+        if (consumerParked && tail - head >= wakeWriter) {
+            consumerParked = false;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    protected void drain() {
+        String newLine = MIPSsim.LINE_SEP;
+        long head = this.head;
+        Record record;
+        try {
+            while (true) {
+                if (head == tail) {
+                    if (closed && head == tail) break;
+                    consumerParked = true;
+                    if (head == tail && !closed) LockSupport.park(this);
+                    consumerParked = false;
+                    continue;
+                }
+                record = ring[(int)head & mask];
+                record.replay(shadow, state, renderer);
+                if (record.render) {
+                    if (written) out.write(newLine);
+                    renderer.writeTo(out, renderer.length() - newLine.length());
+                    written = true;
+                }
+                this.head = ++head;
+                if (producerParked && tail - head <= wakeSimulation) {
+                    producerParked = false;
+                    LockSupport.unpark(producer);
+                }
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+        catch (RuntimeException | Error e) {
+            fail(new IOException("Rendering failed.", e));
+        }
+    }
+
+    // Records the writer's error and wakes the simulation if it is waiting
+    // for room, so that capture() and close() throw it.
+    protected void fail(IOException e) {
+        error = e;
+        if (producerParked) LockSupport.unpark(producer);
+    }
+
+    /** Waits for every record to be written, then flushes out. */
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(consumer);
+        boolean interrupted = false;
+        while (consumer.isAlive()) {
+            try {
+                consumer.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (null != error) throw error;
+    }
+}
+
+// Renders snapshots on a pool of workers, for output that scales with the
+// number of cores. The simulation captures cycles into batches of records,
+// and each batch also holds the data segment as it was when the batch
+// started, so any worker can replay the batch on its own copy of memory.
+// Workers render whole batches into the batch's text, and a sequencer
+// thread writes the text of the batches in the order they were captured.
+//
+// There are two batches for each worker. When all of them are in use the
+// simulation waits for the sequencer to hand one back.
+class ParallelSnapshotWriter implements SnapshotSink {
+    static final int DEFAULT_BATCH_CYCLES = 256;
+
+    static class Batch {
+        final AsyncSnapshotWriter.Record[] records;
+        int count;
+        // The data segment before the first record's changes were applied.
+        final int[] data;
+        final StringBuilder text = new StringBuilder();
+        // The number of snapshots in text.
+        int snapshots;
+        // What went wrong rendering the batch, or null.
+        RuntimeException failure;
+
+        Batch(int cycles, int dataWords) {
+            records = new AsyncSnapshotWriter.Record[cycles];
+            for (int k = 0; k < cycles; ++k) {
+                records[k] = new AsyncSnapshotWriter.Record();
+            }
+            data = new int[dataWords];
+        }
+    }
+
+    // A worker's copy of memory and the state it renders.
+    static class Worker {
+        final Memory memory;
+        final ProcessorState state = new ProcessorState(new InFlightTable(ProcessorState.SLOTS));
+        final SnapshotRenderer renderer;
+
+        Worker(Memory image) {
+            memory = new Memory(image._image, image.entryAddr(), image.dataStartAddr());
+            renderer = new SnapshotRenderer(memory);
+        }
+    }
+
+    // Tells the sequencer that every batch has been queued.
+    protected static final Batch END = new Batch(0, 0);
+
+    protected final Memory memory;
+    protected final Writer out;
+    protected final int dataStart;
+    protected final ExecutorService pool;
+    protected final ArrayBlockingQueue<Batch> free;
+    protected final ArrayBlockingQueue<Future<Batch>> pending;
+    protected final ThreadLocal<Worker> workers;
+    protected final Thread sequencer;
+    protected volatile IOException error;
+    protected Batch current;
+
+    public ParallelSnapshotWriter(Memory memory, Writer out, int threads, int batchCycles) {
+        this.memory = memory;
+        this.out = out;
+        dataStart = memory.dataStartAddr();
+        int dataWords = Math.max(0, (memory.maxAddr() - dataStart) / 4);
+        free = new ArrayBlockingQueue<Batch>(2 * threads);
+        for (int k = 0; k < 2 * threads; ++k) {
+            free.add(new Batch(batchCycles, dataWords));
+        }
+        pending = new ArrayBlockingQueue<Future<Batch>>(2 * threads + 1);
+        final Memory image = memory;
+        workers = new ThreadLocal<Worker>() {
+            protected Worker initialValue() {
+                return new Worker(image);
+            }
+        };
+        pool = Executors.newFixedThreadPool(threads);
+        memory.logChanges();
+        sequencer = new Thread(new Runnable() {
+            public void run() {
+                sequence();
+            }
+        }, "snapshot-sequencer");
+        sequencer.start();
+    }
+
+    public void capture(ProcessorState state, int cycle, boolean render) throws IOException {
+        if (!render && 0 == memory.changeCount()) return;
+        if (null == current) start();
+        current.records[current.count++].capture(state, memory, cycle, render);
+        if (current.count == current.records.length) submit();
+    }
+
+    // Takes a free batch and copies the data segment into it.
+    protected void start() throws IOException {
+        if (null != error) throw error;
+        try {
+            current = free.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a snapshot batch.");
+        }
+        current.count = 0;
+        int[] data = current.data;
+        for (int k = 0; k < data.length; ++k) {
+            data[k] = memory.fetch(dataStart + 4 * k);
+        }
+    }
+
+    protected void submit() throws IOException {
+        final Batch batch = current;
+        current = null;
+        queue(pool.submit(new Callable<Batch>() {
+            public Batch call() {
+                try {
+                    return render(batch);
+                }
+                catch (RuntimeException e) {
+                    batch.failure = e;
+                    return batch;
+                }
+            }
+        }));
+    }
+
+    protected void queue(Future<Batch> future) throws IOException {
+        try {
+            pending.put(future);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted queueing a snapshot batch.");
+        }
+    }
+
+    protected Batch render(Batch batch) {
+        Worker worker = workers.get();
+        int[] data = batch.data;
+        for (int k = 0; k < data.length; ++k) {
+            worker.memory.store(dataStart + 4 * k, data[k]);
+        }
+        String newLine = MIPSsim.LINE_SEP;
+        StringBuilder text = batch.text;
+        text.setLength(0);
+        batch.snapshots = 0;
+        batch.failure = null;
+        SnapshotRenderer renderer = worker.renderer;
+        AsyncSnapshotWriter.Record record;
+        for (int k = 0; k < batch.count; ++k) {
+            record = batch.records[k];
+            record.replay(worker.memory, worker.state, renderer);
+            if (!record.render) continue;
+            if (batch.snapshots++ > 0) text.append(newLine);
+            try {
+                renderer.writeTo(text, renderer.length() - newLine.length());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return batch;
+    }
+
+    // Writes the batches in order and hands them back. After an error the
+    // batches are still handed back, so the simulation does not wait forever.
+    protected void sequence() {
+        String newLine = MIPSsim.LINE_SEP;
+        char[] chars = new char[MIPSsim.OUTPUT_BUFFER_SIZE];
+        boolean written = false;
+        Batch batch;
+        try {
+            while (true) {
+                try {
+                    batch = pending.take().get();
+                }
+                catch (ExecutionException e) {
+                    error = new IOException("Rendering failed.", e.getCause());
+                    continue;
+                }
+                if (END == batch) break;
+                if (null != batch.failure && null == error) error = new IOException("Rendering failed.", batch.failure);
+                if (null == error && batch.snapshots > 0) {
+                    try {
+                        if (written) out.write(newLine);
+                        write(batch.text, chars);
+                        written = true;
+                    }
+                    catch (IOException e) {
+                        error = e;
+                    }
+                }
+                free.put(batch);
+            }
+            if (null == error) out.flush();
+        }
+        catch (InterruptedException e) {
+            error = new InterruptedIOException("Interrupted writing snapshots.");
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    // Writes text through chars, since appending a StringBuilder to a Writer
+    // copies it to a String first.
+    protected void write(StringBuilder text, char[] chars) throws IOException {
+        int count;
+        for (int start = 0, end = text.length(); start < end; start += count) {
+            count = Math.min(chars.length, end - start);
+            text.getChars(start, start + count, chars, 0);
+            out.write(chars, 0, count);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            if (null != current && current.count > 0) submit();
+            queue(CompletableFuture.completedFuture(END));
+            boolean interrupted = false;
+            while (sequencer.isAlive()) {
+                try {
+                    sequencer.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        finally {
+            pool.shutdown();
+        }
+        if (null != error) throw error;
+    }
+}
+
+// Executes the program in program order, one instruction at a time, on a
+// flat register array and the Memory words, with none of the pipeline's
+// buffers or snapshots. It follows the pipeline's writeback conventions:
+// MULT clears HI, and SRL and SRA shift by the register in their third
+// field.
+//
+// Its results are not always the pipeline's. issue() checks a Buf1 entry
+// for RAW and WAR hazards against older entries still in Buf1, but not for
+// WAW, so a younger instruction can issue ahead of an older one that writes
+// the same register. For example, an SRA R5 can issue while an older SUB R5
+// waits on a load, and the SUB then overwrites it. The final state of a
+// drained pipeline can therefore differ from this one, and the registers a
+// pipeline starts with after a fast forward are the program order ones.
+// The pipeline also stops as soon as it fetches BREAK, leaving any
+// instructions still in flight unfinished, while this completes every
+// instruction before the BREAK.
+class FunctionalSimulator {
+    protected final Memory memory;
+    protected final int[] registers = new int[RegisterFile.numRegisters];
+    protected int pc;
+    protected long instructionCount;
+    protected boolean halted;
+    protected BlockTranslator translator;
+
+    // The code segment decoded into columns indexed by addr2index. A null
+    // type marks a word that is not a valid instruction.
+    protected final InstType[] types;
+    protected final int[] dests;
+    protected final int[] src1s;
+    protected final int[] src2s;
+    protected final int[] imms;
+
+    public FunctionalSimulator(Memory memory) {
+        this.memory = memory;
+        pc = memory.entryAddr();
+        int length = Math.max(0, Memory.addr2index(memory.dataStartAddr()));
+        types = new InstType[length];
+        dests = new int[length];
+        src1s = new int[length];
+        src2s = new int[length];
+        imms = new int[length];
+        Instruction inst;
+        for (int k = 0; k < length; ++k) {
+            try {
+                inst = memory.fetchInstruction(Memory.index2addr(k));
+            }
+            catch (IllegalArgumentException e) {
+                continue;
+            }
+            types[k] = inst.type();
+            dests[k] = inst.dest();
+            src1s[k] = inst.src1();
+            src2s[k] = inst.src2();
+            imms[k] = immediate(inst);
+        }
+    }
+
+    // The constant operand of inst: the target of a jump or branch, the offset
+    // of a load or store, or the immediate of an arithmetic instruction.
+    public static int immediate(Instruction inst) {
+        switch (inst.type()) {
+            case J:
+                return ((InstJ)inst).target();
+            case BEQ:
+            case BNE:
+                return ((InstBranchCmpr)inst).target();
+            case BGTZ:
+                return ((InstBGTZ)inst).target();
+            case LW:
+            case SW:
+                return ((InstLoadStore)inst).offset();
+            case ADDI:
+                return ((InstADDI)inst).imm();
+            case ANDI:
+            case ORI:
+                return ((InstLogicalImm)inst).imm();
+            default:
+                return 0;
+        }
+    }
+
+    public Memory memory() {
+        return memory;
+    }
+
+    /** The register values, indexed like RegisterFile. */
+    public int[] registers() {
+        return registers;
+    }
+
+    /** The address of the next instruction to execute. */
+    public int pc() {
+        return pc;
+    }
+
+    /** The number of instructions executed, not counting BREAK. */
+    public long instructionCount() {
+        return instructionCount;
+    }
+
+    /** True once BREAK has been reached. */
+    public boolean halted() {
+        return halted;
+    }
+
+    /** Translates hot basic blocks to bytecode once they have been entered threshold times. */
+    public void enableTranslation(int threshold) {
+        translator = new BlockTranslator(this, threshold);
+    }
+
+    public BlockTranslator translator() {
+        return translator;
+    }
+
+    public boolean run() {
+        return run(Long.MAX_VALUE, -1);
+    }
+
+    /**
+     * Executes instructions until BREAK is reached, maxInstructions more have
+     * been executed, or the next instruction is at stopPc. Returns true if
+     * the program reached BREAK.
+     */
+    public boolean run(long maxInstructions, int stopPc) throws IllegalStateException {
+        if (null == translator) return interpret(maxInstructions, stopPc);
+        return runTranslated(maxInstructions, stopPc);
+    }
+
+    // Runs compiled blocks where they exist and interprets everything else.
+    // A compiled block is only entered when it can run to its end without
+    // passing maxInstructions or stopPc, so both limits stay exact. If a
+    // compiled block throws, pc and the count are left at the instruction
+    // that threw, as the interpreter leaves them.
+    protected boolean runTranslated(long maxInstructions, int stopPc) throws IllegalStateException {
+        final BlockTranslator translator = this.translator;
+        long remaining = maxInstructions;
+        long before;
+        int index, length;
+        CompiledBlock block;
+        while (!halted && remaining > 0 && pc != stopPc) {
+            index = Memory.addr2index(pc);
+            length = translator.blockLength(index);
+            block = null;
+            if (length > 0 && length <= remaining && (stopPc <= pc || stopPc >= pc + 4 * length)) {
+                block = translator.enter(index);
+            }
+            if (null == block) {
+                before = instructionCount;
+                interpret(Math.min(remaining, Math.max(1, length)), stopPc);
+                remaining -= instructionCount - before;
+            }
+            else {
+                try {
+                    pc = block.run(registers, memory);
+                }
+                catch (RuntimeException e) {
+                    instructionCount += (block.faultPc - pc) >> 2;
+                    pc = block.faultPc;
+                    throw e;
+                }
+                instructionCount += length;
+                remaining -= length;
+            }
+        }
+        return halted;
+    }
+
+    protected boolean interpret(long maxInstructions, int stopPc) throws IllegalStateException {
+        final int[] r = registers;
+        final InstType[] types = this.types;
+        final int[] dests = this.dests, src1s = this.src1s, src2s = this.src2s, imms = this.imms;
+        final Memory memory = this.memory;
+        final int base = memory.minAddr();
+        int pc = this.pc;
+        long remaining = maxInstructions;
+        int index, addr;
+        InstType type;
+        try {
+            while (!halted && remaining > 0 && pc != stopPc) {
+                index = (pc - base) >> 2;
+                if (index < 0 || index >= types.length || null == (type = types[index])) {
+                    throw new IllegalStateException("No instruction to execute at address " + pc);
+                }
+                switch (type) {
+                    case J:
+                        pc = imms[index];
+                        break;
+                    case BEQ:
+                        pc = r[src1s[index]] == r[src2s[index]] ? imms[index] : pc + 4;
+                        break;
+                    case BNE:
+                        pc = r[src1s[index]] != r[src2s[index]] ? imms[index] : pc + 4;
+                        break;
+                    case BGTZ:
+                        pc = r[src1s[index]] > 0 ? imms[index] : pc + 4;
+                        break;
+                    case SW:
+                        memory.store(r[src1s[index]] + imms[index], r[src2s[index]]);
+                        pc += 4;
+                        break;
+                    case LW:
+                        r[dests[index]] = memory.fetch(r[src1s[index]] + imms[index]);
+                        pc += 4;
+                        break;
+                    case BREAK:
+                        halted = true;
+                        continue;
+                    case ADD:
+                        r[dests[index]] = r[src1s[index]] + r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case SUB:
+                        r[dests[index]] = r[src1s[index]] - r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case AND:
+                        r[dests[index]] = r[src1s[index]] & r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case OR:
+                        r[dests[index]] = r[src1s[index]] | r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case SRL:
+                        r[dests[index]] = r[src1s[index]] >>> r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case SRA:
+                        r[dests[index]] = r[src1s[index]] >> r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case ADDI:
+                        r[dests[index]] = r[src1s[index]] + imms[index];
+                        pc += 4;
+                        break;
+                    case ANDI:
+                        r[dests[index]] = r[src1s[index]] & imms[index];
+                        pc += 4;
+                        break;
+                    case ORI:
+                        r[dests[index]] = r[src1s[index]] | imms[index];
+                        pc += 4;
+                        break;
+                    case MULT:
+                        r[RegisterFile.LO_INDEX] = r[src1s[index]] * r[src2s[index]];
+                        r[RegisterFile.HI_INDEX] = 0;
+                        pc += 4;
+                        break;
+                    case DIV:
+                        addr = r[src1s[index]];
+                        r[RegisterFile.LO_INDEX] = addr / r[src2s[index]];
+                        r[RegisterFile.HI_INDEX] = addr % r[src2s[index]];
+                        pc += 4;
+                        break;
+                    case MFHI:
+                    case MFLO:
+                        r[dests[index]] = r[src1s[index]];
+                        pc += 4;
+                        break;
+                }
+                --remaining;
+            }
+        }
+        finally {
+            this.pc = pc;
+            instructionCount += maxInstructions - remaining;
+        }
+        return halted;
+    }
+}
+
+// A basic block translated to bytecode. run executes the block on the
+// registers and memory and returns the address of the next instruction.
+// Before each instruction that can throw, a store or a divide, the block
+// sets faultPc to its address. No instruction changes anything before it
+// throws, so after an exception the block has run exactly the instructions
+// before faultPc.
+abstract class CompiledBlock {
+    int faultPc;
+
+    public abstract int run(int[] registers, Memory memory);
+}
+
+// Translates basic blocks of the functional simulator's code segment to
+// bytecode. A block runs from its entry address through the next J, BEQ,
+// BNE or BGTZ, stops short of a BREAK, and is never longer than
+// MAX_BLOCK_LENGTH. Each block that has been entered threshold times is
+// generated as a hidden class extending CompiledBlock, and compiled
+// blocks are chained through a table indexed by addr2index.
+class BlockTranslator {
+    public static final int DEFAULT_THRESHOLD = 32;
+    // Keeps the generated method well under the 64 KiB code size limit.
+    public static final int MAX_BLOCK_LENGTH = 1024;
+
+    protected final FunctionalSimulator sim;
+    protected final int threshold;
+    protected int compiledCount;
+
+    // Indexed by the addr2index of a block's entry address.
+    protected final int[] blockLengths;
+    protected final int[] entryCounts;
+    protected final CompiledBlock[] blocks;
+
+    protected final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    protected final String packagePrefix;
+
+    public BlockTranslator(FunctionalSimulator sim, int threshold) {
+        this.sim = sim;
+        this.threshold = threshold;
+        InstType[] types = sim.types;
+        int length = types.length;
+        blockLengths = new int[length + 1];
+        entryCounts = new int[length];
+        blocks = new CompiledBlock[length];
+        for (int k = length - 1; k >= 0; --k) {
+            if (null == types[k] || InstType.BREAK == types[k]) blockLengths[k] = 0;
+            else if (isBranch(types[k])) blockLengths[k] = 1;
+            else blockLengths[k] = Math.min(MAX_BLOCK_LENGTH, 1 + blockLengths[k + 1]);
+        }
+        String name = BlockTranslator.class.getName();
+        packagePrefix = name.substring(0, name.lastIndexOf('.') + 1).replace('.', '/');
+    }
+
+    public static boolean isBranch(InstType type) {
+        switch (type) {
+            case J:
+            case BEQ:
+            case BNE:
+            case BGTZ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** The number of blocks translated so far. */
+    public int compiledCount() {
+        return compiledCount;
+    }
+
+    /** The number of instructions in the block entered at index, or 0 if there is none. */
+    public int blockLength(int index) {
+        if (index < 0 || index >= blocks.length) return 0;
+        return blockLengths[index];
+    }
+
+    /**
+     * Counts an entry into the block at index and returns its compiled form,
+     * translating it when it becomes hot. Returns null while it is cold.
+     */
+    public CompiledBlock enter(int index) {
+        CompiledBlock block = blocks[index];
+        if (null != block) return block;
+        if (++entryCounts[index] < threshold) return null;
+        // A VerifyError or ClassFormatError here is a bug in generate(), so
+        // it is not caught.
+        block = define(generate(index, blockLengths[index]));
+        blocks[index] = block;
+        ++compiledCount;
+        return block;
+    }
+
+    protected CompiledBlock define(byte[] classBytes) {
+        try {
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(classBytes, true);
+            MethodHandle constructor = hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class));
+            return (CompiledBlock)constructor.invoke();
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("Unable to define a compiled block.", e);
+        }
+    }
+
+    protected String internalName(Class<?> cls) {
+        return packagePrefix + cls.getSimpleName();
+    }
+
+    /** Generates the class file of the block of length instructions entered at index. */
+    protected byte[] generate(int index, int length) {
+        ClassFile file = new ClassFile();
+        Bytes code = new Bytes();
+        String memory = internalName(Memory.class);
+        int fetch = file.methodRef(memory, "fetch", "(I)I");
+        int store = file.methodRef(memory, "store", "(II)V");
+        int faultPc = file.fieldRef(internalName(CompiledBlock.class), "faultPc", "I");
+        InstType[] types = sim.types;
+        int[] dests = sim.dests, src1s = sim.src1s, src2s = sim.src2s, imms = sim.imms;
+        int addr = Memory.index2addr(index);
+        int branchTarget = -1;
+        int k;
+        for (k = index; k < index + length; ++k, addr += 4) {
+            switch (types[k]) {
+                case ADD:
+                    emitBinary(file, code, dests[k], src1s[k], src2s[k], IADD);
+                    break;
+                case SUB:
+                    emitBinary(file, code, dests[k], src1s[k], src2s[k], ISUB);
+                    break;
+                case AND:
+                    emitBinary(file, code, dests[k], src1s[k], src2s[k], IAND);
+                    break;
+                case OR:
+                    emitBinary(file, code, dests[k], src1s[k], src2s[k], IOR);
+                    break;
+                case SRL:
+                    emitBinary(file, code, dests[k], src1s[k], src2s[k], IUSHR);
+                    break;
+                case SRA:
+                    emitBinary(file, code, dests[k], src1s[k], src2s[k], ISHR);
+                    break;
+                case ADDI:
+                    emitImmediate(file, code, dests[k], src1s[k], imms[k], IADD);
+                    break;
+                case ANDI:
+                    emitImmediate(file, code, dests[k], src1s[k], imms[k], IAND);
+                    break;
+                case ORI:
+                    emitImmediate(file, code, dests[k], src1s[k], imms[k], IOR);
+                    break;
+                case MULT:
+                    emitBinary(file, code, RegisterFile.LO_INDEX, src1s[k], src2s[k], IMUL);
+                    code.u1(ALOAD_1);
+                    emitInt(file, code, RegisterFile.HI_INDEX);
+                    code.u1(ICONST_0);
+                    code.u1(IASTORE);
+                    break;
+                case DIV:
+                    emitFaultPc(file, code, faultPc, addr);
+                    // The operands are general purpose registers, so writing
+                    // LO cannot change the operands of the remainder.
+                    emitBinary(file, code, RegisterFile.LO_INDEX, src1s[k], src2s[k], IDIV);
+                    emitBinary(file, code, RegisterFile.HI_INDEX, src1s[k], src2s[k], IREM);
+                    break;
+                case MFHI:
+                case MFLO:
+                    code.u1(ALOAD_1);
+                    emitInt(file, code, dests[k]);
+                    emitLoadRegister(file, code, src1s[k]);
+                    code.u1(IASTORE);
+                    break;
+                case LW:
+                    code.u1(ALOAD_1);
+                    emitInt(file, code, dests[k]);
+                    code.u1(ALOAD_2);
+                    emitAddress(file, code, src1s[k], imms[k]);
+                    code.u1(INVOKEVIRTUAL);
+                    code.u2(fetch);
+                    code.u1(IASTORE);
+                    break;
+                case SW:
+                    emitFaultPc(file, code, faultPc, addr);
+                    code.u1(ALOAD_2);
+                    emitAddress(file, code, src1s[k], imms[k]);
+                    emitLoadRegister(file, code, src2s[k]);
+                    code.u1(INVOKEVIRTUAL);
+                    code.u2(store);
+                    break;
+                case J:
+                    emitInt(file, code, imms[k]);
+                    code.u1(IRETURN);
+                    break;
+                case BEQ:
+                case BNE:
+                case BGTZ:
+                    emitLoadRegister(file, code, src1s[k]);
+                    int opcode;
+                    if (InstType.BGTZ == types[k]) {
+                        opcode = IFLE;
+                    }
+                    else {
+                        emitLoadRegister(file, code, src2s[k]);
+                        opcode = InstType.BEQ == types[k] ? IF_ICMPNE : IF_ICMPEQ;
+                    }
+                    // Jump over the taken path to the fall through path.
+                    int branchAt = code.length();
+                    code.u1(opcode);
+                    code.u2(0);
+                    emitInt(file, code, imms[k]);
+                    code.u1(IRETURN);
+                    branchTarget = code.length();
+                    code.patchU2(branchAt + 1, branchTarget - branchAt);
+                    emitInt(file, code, addr + 4);
+                    code.u1(IRETURN);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot translate " + types[k] + " at address " + addr);
+            }
+        }
+        if (!isBranch(types[k - 1])) {
+            emitInt(file, code, addr);
+            code.u1(IRETURN);
+        }
+        return file.toBytes(packagePrefix + "CompiledBlockImpl", internalName(CompiledBlock.class),
+            "([IL" + memory + ";)I", code, branchTarget);
+    }
+
+    // this.faultPc = addr
+    protected static void emitFaultPc(ClassFile file, Bytes code, int faultPc, int addr) {
+        code.u1(ALOAD_0);
+        emitInt(file, code, addr);
+        code.u1(PUTFIELD);
+        code.u2(faultPc);
+    }
+
+    // r[dest] = r[src1] op r[src2]
+    protected static void emitBinary(ClassFile file, Bytes code, int dest, int src1, int src2, int op) {
+        code.u1(ALOAD_1);
+        emitInt(file, code, dest);
+        emitLoadRegister(file, code, src1);
+        emitLoadRegister(file, code, src2);
+        code.u1(op);
+        code.u1(IASTORE);
+    }
+
+    // r[dest] = r[src] op imm
+    protected static void emitImmediate(ClassFile file, Bytes code, int dest, int src, int imm, int op) {
+        code.u1(ALOAD_1);
+        emitInt(file, code, dest);
+        emitLoadRegister(file, code, src);
+        emitInt(file, code, imm);
+        code.u1(op);
+        code.u1(IASTORE);
+    }
+
+    protected static void emitAddress(ClassFile file, Bytes code, int base, int offset) {
+        emitLoadRegister(file, code, base);
+        emitInt(file, code, offset);
+        code.u1(IADD);
+    }
+
+    protected static void emitLoadRegister(ClassFile file, Bytes code, int index) {
+        code.u1(ALOAD_1);
+        emitInt(file, code, index);
+        code.u1(IALOAD);
+    }
+
+    protected static void emitInt(ClassFile file, Bytes code, int value) {
+        if (-1 <= value && value <= 5) {
+            code.u1(ICONST_0 + value);
+        }
+        else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        }
+        else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        }
+        else {
+            code.u1(LDC_W);
+            code.u2(file.integer(value));
+        }
+    }
+
+    protected static final int ICONST_0 = 0x03;
+    protected static final int BIPUSH = 0x10;
+    protected static final int SIPUSH = 0x11;
+    protected static final int LDC_W = 0x13;
+    protected static final int ALOAD_0 = 0x2a;
+    protected static final int ALOAD_1 = 0x2b;
+    protected static final int ALOAD_2 = 0x2c;
+    protected static final int IALOAD = 0x2e;
+    protected static final int IASTORE = 0x4f;
+    protected static final int IADD = 0x60;
+    protected static final int ISUB = 0x64;
+    protected static final int IMUL = 0x68;
+    protected static final int IDIV = 0x6c;
+    protected static final int IREM = 0x70;
+    protected static final int ISHR = 0x7a;
+    protected static final int IUSHR = 0x7c;
+    protected static final int IAND = 0x7e;
+    protected static final int IOR = 0x80;
+    protected static final int IFLE = 0x9e;
+    protected static final int IF_ICMPEQ = 0x9f;
+    protected static final int IF_ICMPNE = 0xa0;
+    protected static final int IRETURN = 0xac;
+    protected static final int RETURN = 0xb1;
+    protected static final int PUTFIELD = 0xb5;
+    protected static final int INVOKEVIRTUAL = 0xb6;
+    protected static final int INVOKESPECIAL = 0xb7;
+
+    // A growable big-endian byte array.
+    static class Bytes {
+        protected byte[] bytes = new byte[256];
+        protected int length;
+
+        public int length() {
+            return length;
+        }
+
+        public void u1(int value) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, 2 * length);
+            bytes[length++] = (byte)value;
+        }
+
+        public void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        public void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        public void patchU2(int at, int value) {
+            bytes[at] = (byte)(value >> 8);
+            bytes[at + 1] = (byte)value;
+        }
+
+        public void append(Bytes other) {
+            for (int k = 0; k < other.length; ++k) u1(other.bytes[k]);
+        }
+
+        public byte[] toArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    // Writes a class with a no-argument constructor and a single public
+    // method "run" that implements an interface.
+    static class ClassFile {
+        protected final Bytes pool = new Bytes();
+        protected final Map<String, Integer> indices = new HashMap<String, Integer>();
+        protected int poolCount = 1;
+
+        protected int add(String key) {
+            Integer index = indices.get(key);
+            if (null != index) return -index;
+            indices.put(key, poolCount);
+            return poolCount++;
+        }
+
+        public int utf8(String value) {
+            int index = add("U" + value);
+            if (index < 0) return -index;
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            pool.u1(1);
+            pool.u2(bytes.length);
+            for (byte b : bytes) pool.u1(b);
+            return index;
+        }
+
+        public int classRef(String internalName) {
+            int name = utf8(internalName);
+            int index = add("C" + internalName);
+            if (index < 0) return -index;
+            pool.u1(7);
+            pool.u2(name);
+            return index;
+        }
+
+        public int integer(int value) {
+            int index = add("I" + value);
+            if (index < 0) return -index;
+            pool.u1(3);
+            pool.u4(value);
+            return index;
+        }
+
+        public int nameAndType(String name, String descriptor) {
+            int nameIndex = utf8(name);
+            int descIndex = utf8(descriptor);
+            int index = add("N" + name + descriptor);
+            if (index < 0) return -index;
+            pool.u1(12);
+            pool.u2(nameIndex);
+            pool.u2(descIndex);
+            return index;
+        }
+
+        public int methodRef(String owner, String name, String descriptor) {
+            int cls = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            int index = add("M" + owner + "." + name + descriptor);
+            if (index < 0) return -index;
+            pool.u1(10);
+            pool.u2(cls);
+            pool.u2(nameAndType);
+            return index;
+        }
+
+        public int fieldRef(String owner, String name, String descriptor) {
+            int cls = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            int index = add("F" + owner + "." + name + descriptor);
+            if (index < 0) return -index;
+            pool.u1(9);
+            pool.u2(cls);
+            pool.u2(nameAndType);
+            return index;
+        }
+
+        // frameOffset is the bytecode offset of the only branch target in
+        // code, or -1 when code does not branch.
+        public byte[] toBytes(String name, String superName, String descriptor, Bytes code, int frameOffset) {
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            int superInit = methodRef(superName, "<init>", "()V");
+            int init = utf8("<init>");
+            int initDesc = utf8("()V");
+            int run = utf8("run");
+            int runDesc = utf8(descriptor);
+            int codeAttr = utf8("Code");
+            int stackMap = utf8("StackMapTable");
+
+            Bytes out = new Bytes();
+            out.u4(0xCAFEBABE);
+            out.u2(0);
+            out.u2(52);
+            out.u2(poolCount);
+            out.append(pool);
+            out.u2(0x0001 | 0x0010 | 0x0020); // public final super
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(0); // interfaces
+            out.u2(0); // fields
+            out.u2(2); // methods
+
+            Bytes initCode = new Bytes();
+            initCode.u1(ALOAD_0);
+            initCode.u1(INVOKESPECIAL);
+            initCode.u2(superInit);
+            initCode.u1(RETURN);
+            writeMethod(out, init, initDesc, codeAttr, 1, 1, initCode, -1, stackMap);
+            // The run method needs this, the registers, and the memory.
+            writeMethod(out, run, runDesc, codeAttr, 6, 3, code, frameOffset, stackMap);
+            out.u2(0); // attributes
+            return out.toArray();
+        }
+
+        protected static void writeMethod(Bytes out, int name, int descriptor, int codeAttr,
+                int maxStack, int maxLocals, Bytes code, int frameOffset, int stackMap) {
+            out.u2(0x0001); // public
+            out.u2(name);
+            out.u2(descriptor);
+            out.u2(1);
+            out.u2(codeAttr);
+            // max_stack, max_locals, code_length, code, exception_table_length, attributes_count
+            int frames = frameOffset < 0 ? 0 : 11;
+            out.u4(2 + 2 + 4 + code.length() + 2 + 2 + frames);
+            out.u2(maxStack);
+            out.u2(maxLocals);
+            out.u4(code.length());
+            out.append(code);
+            out.u2(0);
+            if (frameOffset < 0) {
+                out.u2(0);
+                return;
+            }
+            // The branch target has the same locals as the method entry and
+            // an empty stack.
+            out.u2(1);
+            out.u2(stackMap);
+            out.u4(5);
+            out.u2(1);
+            out.u1(251); // same_frame_extended
+            out.u2(frameOffset);
+        }
+    }
+}
+
+// Simulates many programs at once, each with its own Memory and Processor,
+// on a pool of worker threads. The jobs share no mutable state, so they only
+// compete for cores.
+class BatchRunner {
+    // The name of a file of output paths is the input's name with its
+    // extension replaced by this.
+    static final String OUTPUT_SUFFIX = ".simulation.txt";
+
+    static class Job implements Runnable {
+        final String inputPath;
+        final String outputPath;
+        int cycles;
+        Exception error;
+
+        Job(String inputPath, String outputPath) {
+            this.inputPath = inputPath;
+            this.outputPath = outputPath;
+        }
+
+        public void run() {
+            try {
+                cycles = MIPSsim.writeSimulation(new Processor(Memory.read(inputPath)), outputPath);
+            }
+            catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    final List<Job> jobs;
+    final int workers;
+    final boolean virtualThreads;
+
+    public BatchRunner(List<Job> jobs, int workers, boolean virtualThreads) {
+        this.jobs = jobs;
+        this.workers = workers;
+        this.virtualThreads = virtualThreads;
+    }
+
+    // Makes a job of each file in a directory, in name order, or of each line
+    // of a manifest. A manifest line is an input path, optionally followed by
+    // whitespace and an output path. Blank lines and lines starting with '#'
+    // are skipped, and relative paths are relative to the manifest.
+    public static List<Job> jobs(String inputPath, String outputDir) throws IOException {
+        Path input = Paths.get(inputPath);
+        Path outputs = Paths.get(outputDir);
+        List<Job> jobs = new ArrayList<Job>();
+        if (Files.isDirectory(input)) {
+            List<Path> files = new ArrayList<Path>();
+            DirectoryStream<Path> stream = Files.newDirectoryStream(input);
+            try {
+                for (Path file : stream) {
+                    if (Files.isRegularFile(file)) files.add(file);
+                }
+            }
+            finally {
+                stream.close();
+            }
+            Collections.sort(files);
+            for (Path file : files) {
+                jobs.add(new Job(file.toString(), outputs.resolve(outputName(file)).toString()));
+            }
+            return jobs;
+        }
+        Path base = input.toAbsolutePath().getParent();
+        String[] fields;
+        Path file;
+        for (String line : Files.readAllLines(input, MIPSsim.CHARSET)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            fields = line.split("\\s+");
+            if (fields.length > 2) throw new IOException("Too many fields in manifest line: " + line);
+            file = base.resolve(fields[0]);
+            jobs.add(new Job(file.toString(), 2 == fields.length
+                ? base.resolve(fields[1]).toString()
+                : outputs.resolve(outputName(file)).toString()));
+        }
+        return jobs;
+    }
+
+    static String outputName(Path input) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return name + OUTPUT_SUFFIX;
+    }
+
+    // Returns an executor that starts a virtual thread per job, or null if
+    // this JVM has no virtual threads.
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Runs every job and returns the number that failed.
+    public int run() throws InterruptedException {
+        ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtualThreads && null == executor) {
+            System.err.println("Virtual threads are not available, using platform threads.");
+        }
+        // Virtual threads start one per job, so the permits bound how many run.
+        final Semaphore permits = new Semaphore(workers);
+        if (null == executor) executor = Executors.newFixedThreadPool(workers);
+        try {
+            for (final Job job : jobs) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        permits.acquireUninterruptibly();
+                        try {
+                            job.run();
+                        }
+                        finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        int failures = 0;
+        for (Job job : jobs) {
+            if (null != job.error) ++failures;
+        }
+        return failures;
+    }
+
+    // Reports each failure and then the totals for the batch.
+    public void summarize(PrintStream out, long elapsedNanos) {
+        int failures = 0;
+        long cycles = 0;
+        for (Job job : jobs) {
+            if (null == job.error) {
+                cycles += job.cycles;
+                continue;
+            }
+            ++failures;
+            out.println("Failed: " + job.inputPath + ": " + job.error);
+        }
+        double seconds = elapsedNanos / 1e9;
+        out.println(String.format("Jobs:\t%d", jobs.size()));
+        out.println(String.format("Failures:\t%d", failures));
+        out.println(String.format("Cycles:\t%d", cycles));
+        out.println(String.format("Seconds:\t%.3f", seconds));
+        out.println(String.format("Jobs/s:\t%.1f", jobs.size() / seconds));
+        out.println(String.format("Cycles/s:\t%.0f", cycles / seconds));
+    }
+}
+
+// Runs every pairing of a set of pipeline configurations with a set of
+// programs on a work-stealing pool, collecting only the stats of each run.
+// The configurations are the grid of a sweep file applied over a base
+// configuration, or a random sample of its points. Each line of the file is
+// a setting with one or more values separated by commas, such as
+// "buf1Depth=4,8,16", and the grid is every combination of the values.
+//
+// The results are a table with one tab-separated row per run: the
+// configuration, the program, its image and the counters of PipelineStats
+// other than occupancy. A run whose configuration and image match a row of
+// the table already at the output path is not run again, and that row is
+// kept instead. The table is written to a temporary file and moved into
+// place, so an interrupted sweep leaves the previous table as it was.
+class SweepRunner {
+    // The most configurations a grid may have.
+    static final int MAX_CONFIGS = 1 << 20;
+
+    // A setting of the sweep file and the values it takes.
+    static class Axis {
+        final String key;
+        final String[] values;
+
+        Axis(String key, String[] values) {
+            this.key = key;
+            this.values = values;
+        }
+    }
+
+    static class Program {
+        final String path;
+        Memory image;
+        // The number of words and hash of the image, as the table shows it.
+        String imageKey;
+        Exception error;
+
+        Program(String path) {
+            this.path = path;
+        }
+    }
+
+    static class Run extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final PipelineConfig config;
+        final Program program;
+        // The counters, kept from the previous table or filled in by compute().
+        List<String> values;
+        boolean cached;
+        Throwable error;
+
+        Run(PipelineConfig config, Program program) {
+            this.config = config;
+            this.program = program;
+        }
+
+        String key() {
+            return config + "\t" + program.imageKey;
+        }
+
+        // Each run has its own Memory over the shared image, which it never
+        // changes, so the runs only compete for cores. Whatever a run throws,
+        // even an Error such as running out of memory, fails only that run,
+        // so the others finish and the table keeps their rows.
+        protected void compute() {
+            if (null != program.error) {
+                error = program.error;
+                return;
+            }
+            try {
+                Memory image = program.image;
+                Processor proc = new Processor(
+                    new Memory(image._image, image.entryAddr(), image.dataStartAddr()), config);
+                proc.stats = new PipelineStats(PipelineStats.Format.CSV, null, 0, config);
+                while (proc.step());
+                values = proc.stats.counterValues();
+            }
+            catch (RuntimeException | Error e) {
+                error = e;
+            }
+        }
+    }
+
+    final List<PipelineConfig> configs;
+    final List<Program> programs;
+    final List<Run> runs;
+    final int workers;
+
+    public SweepRunner(List<PipelineConfig> configs, List<String> programPaths, int workers) {
+        this.configs = configs;
+        this.workers = workers;
+        programs = new ArrayList<Program>(programPaths.size());
+        for (String path : programPaths) programs.add(new Program(path));
+        runs = new ArrayList<Run>(configs.size() * programs.size());
+        for (PipelineConfig config : configs) {
+            for (Program program : programs) runs.add(new Run(config, program));
+        }
+    }
+
+    // Reads the axes of the sweep file at pathString, checking each value
+    // against a copy of base.
+    public static List<Axis> readAxes(String pathString, PipelineConfig base) throws IOException, IllegalArgumentException {
+        List<Axis> axes = new ArrayList<Axis>();
+        PipelineConfig check = base.copy();
+        int equals;
+        String key;
+        String[] values;
+        for (String line : Files.readAllLines(Paths.get(pathString), MIPSsim.CHARSET)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            equals = line.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("Expected key=values: " + line);
+            key = line.substring(0, equals).trim();
+            values = line.substring(equals + 1).split(",");
+            for (int k = 0; k < values.length; ++k) {
+                values[k] = values[k].trim();
+                check.set(key + "=" + values[k]);
+            }
+            axes.add(new Axis(key, values));
+        }
+        return axes;
+    }
+
+    // The configurations of the grid, or of samples of its points chosen with
+    // seed if samples is positive and less than the size of the grid. Either
+    // way they are in grid order, with the last axis changing fastest.
+    public static List<PipelineConfig> configs(PipelineConfig base, List<Axis> axes, int samples, long seed) throws IllegalArgumentException {
+        long size = 1;
+        for (Axis axis : axes) {
+            size *= axis.values.length;
+            if (size > MAX_CONFIGS) throw new IllegalArgumentException("Sweep has over " + MAX_CONFIGS + " configurations.");
+        }
+        int total = (int)size;
+        List<Integer> points = new ArrayList<Integer>();
+        if (samples <= 0 || samples >= total) {
+            for (int k = 0; k < total; ++k) points.add(k);
+        }
+        else {
+            // Floyd's algorithm picks samples distinct points in one pass.
+            Random random = new Random(seed);
+            Set<Integer> chosen = new TreeSet<Integer>();
+            for (int k = total - samples; k < total; ++k) {
+                int point = random.nextInt(k + 1);
+                if (!chosen.add(point)) chosen.add(k);
+            }
+            points.addAll(chosen);
+        }
+        List<PipelineConfig> configs = new ArrayList<PipelineConfig>(points.size());
+        PipelineConfig config;
+        int rest;
+        for (int point : points) {
+            config = base.copy();
+            rest = point;
+            for (int k = axes.size() - 1; k >= 0; --k) {
+                Axis axis = axes.get(k);
+                config.set(axis.key, axis.values[rest % axis.values.length]);
+                rest /= axis.values.length;
+            }
+            config.validate();
+            configs.add(config);
+        }
+        return configs;
+    }
+
+    static List<String> columns() {
+        List<String> columns = new ArrayList<String>();
+        columns.add("config");
+        columns.add("program");
+        columns.add("image");
+        columns.addAll(PipelineStats.counterNames());
+        return columns;
+    }
+
+    // Reads each program once. The runs of a program that cannot be read
+    // fail with its error.
+    public void load() {
+        for (Program program : programs) {
+            try {
+                program.image = Memory.read(program.path);
+                program.imageKey = program.image._image.limit() + ":"
+                    + String.format("%016x", program.image.imageHash());
+            }
+            catch (IOException | RuntimeException e) {
+                program.error = e;
+            }
+        }
+    }
+
+    // Keeps the counters of every run with a row in the table at pathString.
+    // A table with other columns, or none at all, is ignored. Returns the
+    // number of runs kept.
+    public int reuse(String pathString) throws IOException {
+        Path path = Paths.get(pathString);
+        if (!Files.isRegularFile(path)) return 0;
+        List<String> lines = Files.readAllLines(path, MIPSsim.CHARSET);
+        if (lines.isEmpty() || !lines.get(0).equals(String.join("\t", columns()))) return 0;
+        int width = columns().size();
+        Map<String, List<String>> rows = new HashMap<String, List<String>>();
+        String[] fields;
+        for (int k = 1; k < lines.size(); ++k) {
+            fields = lines.get(k).split("\t", -1);
+            if (width != fields.length) continue;
+            rows.put(fields[0] + "\t" + fields[2], Arrays.asList(fields).subList(3, width));
+        }
+        int kept = 0;
+        List<String> values;
+        for (Run run : runs) {
+            if (null == run.program.imageKey) continue;
+            values = rows.get(run.key());
+            if (null == values) continue;
+            run.values = new ArrayList<String>(values);
+            run.cached = true;
+            ++kept;
+        }
+        return kept;
+    }
+
+    // Runs every run not kept from a previous table and returns the number
+    // that failed.
+    public int run() {
+        final List<Run> pending = new ArrayList<Run>();
+        for (Run run : runs) {
+            if (!run.cached) pending.add(run);
+        }
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.invoke(new RecursiveAction() {
+                protected void compute() {
+                    invokeAll(pending);
+                }
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        int failures = 0;
+        for (Run run : pending) {
+            if (null != run.error) ++failures;
+        }
+        return failures;
+    }
+
+    // Writes a row for each run that succeeded, in the order of the runs.
+    public void write(Writer out) throws IOException {
+        String newLine = MIPSsim.LINE_SEP;
+        out.append(String.join("\t", columns())).append(newLine);
+        for (Run run : runs) {
+            if (null == run.values) continue;
+            out.append(run.config.toString()).append('\t');
+            out.append(run.program.path).append('\t');
+            out.append(run.program.imageKey).append('\t');
+            out.append(String.join("\t", run.values)).append(newLine);
+        }
+    }
+
+    // Writes the table to a temporary file beside pathString and then
+    // replaces pathString with it.
+    public void save(String pathString) throws IOException {
+        Path path = Paths.get(pathString);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Writer writer = Files.newBufferedWriter(temp, MIPSsim.CHARSET);
+        try {
+            write(writer);
+        }
+        finally {
+            writer.close();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Reports each failure and then the totals for the sweep.
+    public void summarize(PrintStream out, long elapsedNanos) {
+        int failures = 0, kept = 0;
+        long cycles = 0;
+        for (Run run : runs) {
+            if (run.cached) {
+                ++kept;
+                continue;
+            }
+            if (null == run.error) {
+                cycles += Long.parseLong(run.values.get(0));
+                continue;
+            }
+            ++failures;
+            out.println("Failed: " + run.program.path + " with " + run.config + ": " + run.error);
+        }
+        int simulated = runs.size() - kept;
+        double seconds = elapsedNanos / 1e9;
+        out.println(String.format("Configs:\t%d", configs.size()));
+        out.println(String.format("Programs:\t%d", programs.size()));
+        out.println(String.format("Runs:\t%d", simulated));
+        out.println(String.format("Kept:\t%d", kept));
+        out.println(String.format("Failures:\t%d", failures));
+        out.println(String.format("Cycles:\t%d", cycles));
+        out.println(String.format("Seconds:\t%.3f", seconds));
+        out.println(String.format("Runs/s:\t%.1f", simulated / seconds));
+        out.println(String.format("Cycles/s:\t%.0f", cycles / seconds));
+    }
+}
+
+// The command line options. Arguments that start with "--" are options and
+// the rest are the input path followed by the output path.
+class Options {
+    String inputPath = MIPSsim.DEFAULT_INPUT;
+    // The output path, or null to use the default of the selected mode.
+    String outputPath;
+    boolean functional;
+    // Translate hot blocks in the functional mode, or 0 to only interpret.
+    int translateThreshold;
+    // Convert the input image to this format instead of running it.
+    ImageFormat convertTo;
+    // Simulate every program in the input directory or manifest, writing the
+    // results to the output directory.
+    boolean batch;
+    int workers = Runtime.getRuntime().availableProcessors();
+    boolean virtualThreads;
+    // Save checkpoints of the pipeline to this path, every checkpointInterval
+    // cycles if it is positive and when the JVM is asked to exit.
+    String checkpointPath;
+    int checkpointInterval;
+    // Continue the simulation from this checkpoint.
+    String resumePath;
+    // Run the first fastForwardCount instructions, or those before the first
+    // reaching fastForwardPc, functionally before starting the pipeline.
+    long fastForwardCount;
+    int fastForwardPc = -1;
+    // Chooses the cycles written to the simulation file, or null for all.
+    SnapshotFilter snapshots;
+    // Record a binary trace at tracePath instead of writing the simulation
+    // text, or regenerate the text from the trace at fromTracePath.
+    String tracePath;
+    int keyframeInterval = TraceWriter.DEFAULT_KEYFRAME_INTERVAL;
+    String fromTracePath;
+    // Render and write snapshots on a writer thread, with a ring of
+    // asyncCapacity cycles, gzip compressing the output if gzip is set.
+    boolean async;
+    int asyncCapacity = AsyncSnapshotWriter.DEFAULT_CAPACITY;
+    boolean gzip;
+    // Render on this many workers in batches of renderBatch cycles instead,
+    // or on the one writer thread if 0.
+    int renderWorkers;
+    int renderBatch = ParallelSnapshotWriter.DEFAULT_BATCH_CYCLES;
+    // Write pipeline statistics to statsPath at the end, and every
+    // statsInterval cycles if it is positive, in statsFormat or else the
+    // format named by the extension.
+    String statsPath;
+    PipelineStats.Format statsFormat;
+    int statsInterval;
+    // Print the simulation rate of the host on standard error at the end.
+    boolean statsHost;
+    // Write the per-instruction profile as a report to profilePath and as
+    // folded stacks to foldedPath.
+    String profilePath;
+    String foldedPath;
+    // Read the shape of the pipeline from configPath if it is set, then
+    // apply configSettings.
+    String configPath;
+    final List<String> configSettings = new ArrayList<String>();
+    // Run every program in the input directory or manifest with each
+    // configuration of the sweep file at sweepPath, or with sweepSamples of
+    // them chosen with sweepSeed, and write the stats to the output table.
+    String sweepPath;
+    int sweepSamples;
+    long sweepSeed = 1;
+
+    enum ImageFormat { BINARY, TEXT }
+
+    public static Options parse(String[] args) throws IllegalArgumentException {
+        Options options = new Options();
+        List<String> positional = new ArrayList<String>(2);
+        String arg;
+        for (int k = 0; k < args.length; ++k) {
+            arg = args[k];
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+            else if (arg.equals("--functional")) {
+                options.functional = true;
+            }
+            else if (arg.equals("--translate")) {
+                options.functional = true;
+                options.translateThreshold = BlockTranslator.DEFAULT_THRESHOLD;
+            }
+            else if (arg.equals("--to-binary")) {
+                options.convertTo = ImageFormat.BINARY;
+            }
+            else if (arg.equals("--to-text")) {
+                options.convertTo = ImageFormat.TEXT;
+            }
+            else if (arg.equals("--batch")) {
+                options.batch = true;
+            }
+            else if (arg.equals("--workers")) {
+                options.workers = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--virtual-threads")) {
+                options.virtualThreads = true;
+            }
+            else if (arg.equals("--checkpoint")) {
+                options.checkpointPath = value(args, k++);
+            }
+            else if (arg.equals("--checkpoint-every")) {
+                options.checkpointInterval = intValue(args, k++, 1);
+                if (null == options.checkpointPath) options.checkpointPath = MIPSsim.CHECKPOINT_NAME;
+            }
+            else if (arg.equals("--resume")) {
+                options.resumePath = value(args, k++);
+            }
+            else if (arg.equals("--fast-forward")) {
+                options.fastForwardCount = longValue(args, k++, 0);
+            }
+            else if (arg.equals("--fast-forward-to")) {
+                options.fastForwardPc = intValue(args, k++, 0);
+            }
+            else if (arg.equals("--snapshot-cycles")) {
+                options.snapshots().setRanges(value(args, k++));
+            }
+            else if (arg.equals("--snapshot-every")) {
+                options.snapshots().interval = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--snapshot-last")) {
+                options.snapshots().lastOnly = true;
+            }
+            else if (arg.equals("--snapshot-changes")) {
+                options.snapshots().changesOnly = true;
+            }
+            else if (arg.equals("--trace")) {
+                options.tracePath = value(args, k++);
+            }
+            else if (arg.equals("--trace-keyframes")) {
+                options.keyframeInterval = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--from-trace")) {
+                options.fromTracePath = value(args, k++);
+            }
+            else if (arg.equals("--async")) {
+                options.async = true;
+            }
+            else if (arg.equals("--async-capacity")) {
+                options.async = true;
+                options.asyncCapacity = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--render-workers")) {
+                options.async = true;
+                options.renderWorkers = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--render-batch")) {
+                options.renderBatch = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--gzip")) {
+                options.async = true;
+                options.gzip = true;
+            }
+            else if (arg.equals("--stats")) {
+                options.statsPath = value(args, k++);
+            }
+            else if (arg.equals("--stats-format")) {
+                String value = value(args, k++);
+                try {
+                    options.statsFormat = PipelineStats.Format.valueOf(value.toUpperCase());
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid value for " + arg + ": " + value);
+                }
+            }
+            else if (arg.equals("--stats-every")) {
+                options.statsInterval = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--stats-host")) {
+                options.statsHost = true;
+            }
+            else if (arg.equals("--profile")) {
+                options.profilePath = value(args, k++);
+            }
+            else if (arg.equals("--profile-folded")) {
+                options.foldedPath = value(args, k++);
+            }
+            else if (arg.equals("--config")) {
+                options.configPath = value(args, k++);
+            }
+            else if (arg.equals("--set")) {
+                options.configSettings.add(value(args, k++));
+            }
+            else if (arg.equals("--sweep")) {
+                options.sweepPath = value(args, k++);
+            }
+            else if (arg.equals("--sweep-samples")) {
+                options.sweepSamples = intValue(args, k++, 1);
+            }
+            else if (arg.equals("--sweep-seed")) {
+                options.sweepSeed = longValue(args, k++, Long.MIN_VALUE);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (positional.size() > 2) {
+            throw new IllegalArgumentException("Too many arguments: " + positional.get(2));
+        }
+        if (positional.size() >= 1) options.inputPath = positional.get(0);
+        if (positional.size() >= 2) options.outputPath = positional.get(1);
+        return options;
+    }
+
+    // The value following the option at args[k].
+    protected static String value(String[] args, int k) throws IllegalArgumentException {
+        if (k + 1 >= args.length) throw new IllegalArgumentException("Missing value for option: " + args[k]);
+        return args[k + 1];
+    }
+
+    protected static int intValue(String[] args, int k, int min) throws IllegalArgumentException {
+        String value = value(args, k);
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + args[k] + ": " + value);
+        }
+        if (result < min) throw new IllegalArgumentException("Invalid value for " + args[k] + ": " + value);
+        return result;
+    }
+
+    protected static long longValue(String[] args, int k, long min) throws IllegalArgumentException {
+        String value = value(args, k);
+        long result;
+        try {
+            result = Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + args[k] + ": " + value);
+        }
+        if (result < min) throw new IllegalArgumentException("Invalid value for " + args[k] + ": " + value);
+        return result;
+    }
+
+    protected SnapshotFilter snapshots() {
+        if (null == snapshots) snapshots = new SnapshotFilter();
+        return snapshots;
+    }
+
+    public boolean fastForward() {
+        return fastForwardCount > 0 || -1 != fastForwardPc;
+    }
+
+    public PipelineConfig pipelineConfig() throws IOException, IllegalArgumentException {
+        PipelineConfig config = null == configPath ? new PipelineConfig() : PipelineConfig.read(configPath);
+        for (String setting : configSettings) config.set(setting);
+        config.validate();
+        return config;
+    }
+
+    // The first option given that saves or captures snapshots in the fixed
+    // layout of the default pipeline, or null.
+    public String defaultPipelineOption() {
+        if (null != checkpointPath) return "--checkpoint";
+        if (null != resumePath) return "--resume";
+        if (null != tracePath) return "--trace";
+        if (null != fromTracePath) return "--from-trace";
+        if (async) return "--async";
+        if (null != snapshots && snapshots.changesOnly) return "--snapshot-changes";
+        return null;
+    }
+
+    public PipelineStats.Format statsFormat() {
+        if (null != statsFormat) return statsFormat;
+        if (statsPath.toLowerCase().endsWith(".csv")) return PipelineStats.Format.CSV;
+        return PipelineStats.Format.JSON;
+    }
+
+    public String outputPath(String defaultPath) {
+        if (null == outputPath) return defaultPath;
+        return outputPath;
+    }
+}
+
+public class MIPSsim {
     public static final String DEFAULT_INPUT = "sample.txt";
     public static final String DISASSEMBLY_NAME = "disassembly.txt";
     public static final String SIMULATION_NAME = "simulation.txt";
+    public static final String FINAL_STATE_NAME = "final_state.txt";
+    public static final String BINARY_IMAGE_NAME = "image.bin";
+    public static final String TEXT_IMAGE_NAME = "image.txt";
+    public static final String BATCH_OUTPUT_NAME = "batch";
+    public static final String SWEEP_OUTPUT_NAME = "sweep.tsv";
+    public static final String CHECKPOINT_NAME = "checkpoint.bin";
     public static final Charset CHARSET = StandardCharsets.UTF_8;
     public static final String LINE_SEP = System.getProperty("line.separator");
+    public static final String STDOUT_NAME = "-";
+    public static final int OUTPUT_BUFFER_SIZE = 1 << 16;
 
     public static void write2file(String contents, String fileName) throws IOException {
         PrintWriter writer = new PrintWriter(
@@ -1806,17 +7089,309 @@ public class MIPSsim {
         write2file(simulation, SIMULATION_NAME);
     }
 
-    public static void main(String[] args) {
-        String inputPath;
-        if (args.length >= 1) {
-            inputPath = args[0];
+    public static Writer newOutputWriter(String fileName) throws IOException {
+        return newOutputWriter(fileName, 0, null);
+    }
+
+    protected static OutputStream newOutputStream(String fileName) throws IOException {
+        if (STDOUT_NAME.equals(fileName)) return System.out;
+        return Files.newOutputStream(Paths.get(fileName),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        );
+    }
+
+    // Opens fileName to continue output that is length bytes long, dropping
+    // anything after it. Standard output is simply appended to. The writes to
+    // the file are metered by host, if it is not null.
+    public static Writer newOutputWriter(String fileName, long length, HostMetrics host) throws IOException {
+        OutputStream stream;
+        if (0 == length || STDOUT_NAME.equals(fileName)) {
+            stream = newOutputStream(fileName);
+        }
+        else {
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE);
+            if (channel.size() < length) {
+                channel.close();
+                throw new IOException("Output is shorter than the checkpoint: " + fileName);
+            }
+            channel.truncate(length);
+            channel.position(length);
+            stream = Channels.newOutputStream(channel);
+        }
+        if (null != host) stream = host.meter(stream);
+        return new BufferedWriter(new OutputStreamWriter(stream, CHARSET), OUTPUT_BUFFER_SIZE);
+    }
+
+    // Streams the simulation to fileName one cycle at a time, or to standard
+    // output when fileName is "-". A processor restored from a checkpoint
+    // continues the output already in fileName. Returns the number of cycles.
+    public static int writeSimulation(Processor proc, String fileName) throws IOException {
+        Writer writer = newOutputWriter(fileName, proc.outputLength, proc.host);
+        try {
+            return proc.simulate(writer);
+        }
+        finally {
+            if (STDOUT_NAME.equals(fileName)) writer.flush();
+            else writer.close();
+        }
+    }
+
+    // Writes to a channel of fileName, or to standard output when fileName
+    // is "-", gzip compressing the text if gzip is set. The writes to the
+    // file are metered by host, if it is not null.
+    public static Writer newChannelWriter(String fileName, boolean gzip, HostMetrics host) throws IOException {
+        OutputStream stream;
+        if (STDOUT_NAME.equals(fileName)) {
+            stream = System.out;
         }
         else {
-            inputPath = DEFAULT_INPUT;
+            stream = Channels.newOutputStream(FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            ));
+        }
+        if (null != host) stream = host.meter(stream);
+        if (gzip) stream = new GZIPOutputStream(stream, OUTPUT_BUFFER_SIZE);
+        return new BufferedWriter(new OutputStreamWriter(stream, CHARSET), OUTPUT_BUFFER_SIZE);
+    }
+
+    // Streams the simulation to fileName, rendering and writing on a writer
+    // thread while the simulation runs ahead by up to asyncCapacity cycles,
+    // or on renderWorkers workers in batches of renderBatch cycles.
+    public static int writeSimulationAsync(Processor proc, String fileName, Options options) throws IOException {
+        Writer writer = newChannelWriter(fileName, options.gzip, proc.host);
+        try {
+            SnapshotSink sink;
+            if (options.renderWorkers > 0) {
+                sink = new ParallelSnapshotWriter(proc.memory, writer, options.renderWorkers, options.renderBatch);
+            }
+            else {
+                sink = new AsyncSnapshotWriter(proc.memory, writer, options.asyncCapacity);
+            }
+            try {
+                return proc.simulate(sink);
+            }
+            finally {
+                sink.close();
+            }
+        }
+        finally {
+            if (STDOUT_NAME.equals(fileName) && !options.gzip) writer.flush();
+            else writer.close();
+        }
+    }
+
+    // Records every cycle of the simulation as a binary trace at fileName.
+    public static int writeTrace(Processor proc, String fileName, int keyframeInterval) throws IOException {
+        TraceWriter trace = new TraceWriter(fileName, proc.memory, keyframeInterval);
+        try {
+            return proc.trace(trace);
+        }
+        finally {
+            trace.close();
+        }
+    }
+
+    // Regenerates the simulation text of the cycles filter accepts from the
+    // trace at tracePath, which was recorded over memory.
+    public static void writeFromTrace(Memory memory, String tracePath, SnapshotFilter filter, String fileName) throws IOException {
+        TraceReader reader = new TraceReader(memory, tracePath);
+        try {
+            Writer writer = newOutputWriter(fileName);
+            try {
+                reader.write(writer, filter);
+            }
+            finally {
+                if (STDOUT_NAME.equals(fileName)) writer.flush();
+                else writer.close();
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    // Runs the program without the pipeline and writes the final registers
+    // and data to fileName.
+    public static void writeFunctional(FunctionalSimulator sim, String fileName) throws IOException {
+        sim.run();
+        Writer writer = newOutputWriter(fileName);
+        try {
+            new SnapshotRenderer(sim.memory()).renderFinalState(sim).writeTo(writer);
+        }
+        finally {
+            if (STDOUT_NAME.equals(fileName)) writer.flush();
+            else writer.close();
+        }
+    }
+
+    // Writes memory to fileName in the given image format.
+    public static void writeImage(Memory memory, Options.ImageFormat format, String fileName) throws IOException {
+        if (Options.ImageFormat.BINARY == format) {
+            memory.writeBinary(fileName);
+            return;
+        }
+        Writer writer = newOutputWriter(fileName);
+        try {
+            memory.writeText(writer);
+        }
+        finally {
+            if (STDOUT_NAME.equals(fileName)) writer.flush();
+            else writer.close();
+        }
+    }
+
+    // Writes the final sample of stats and closes writer, which writes to
+    // fileName.
+    public static void writeStats(PipelineStats stats, Writer writer, String fileName) {
+        try {
+            try {
+                stats.finish();
+            }
+            finally {
+                if (STDOUT_NAME.equals(fileName)) writer.flush();
+                else writer.close();
+            }
+        }
+        catch (IOException | UncheckedIOException e) {
+            System.err.println("Failed to write stats file: " + fileName);
+        }
+    }
+
+    // Writes profile to fileName as a report, or as folded stacks if folded
+    // is set.
+    public static void writeProfile(ExecutionProfile profile, String fileName, boolean folded) {
+        try {
+            Writer writer = newOutputWriter(fileName);
+            try {
+                if (folded) profile.writeFolded(writer);
+                else profile.writeReport(writer);
+            }
+            finally {
+                if (STDOUT_NAME.equals(fileName)) writer.flush();
+                else writer.close();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write profile file: " + fileName);
+        }
+    }
+
+    // Runs the instructions before the region of interest with the translating
+    // functional simulator and returns a pipeline of the shape config that
+    // starts after them.
+    public static Processor fastForward(Memory memory, Options options, PipelineConfig config) throws IllegalStateException {
+        FunctionalSimulator sim = new FunctionalSimulator(memory);
+        sim.enableTranslation(BlockTranslator.DEFAULT_THRESHOLD);
+        sim.run(options.fastForwardCount > 0 ? options.fastForwardCount : Long.MAX_VALUE, options.fastForwardPc);
+        return new Processor(sim, config);
+    }
+
+    public static void runBatch(Options options) {
+        String outputDir = options.outputPath(BATCH_OUTPUT_NAME);
+        BatchRunner runner;
+        try {
+            Files.createDirectories(Paths.get(outputDir));
+            runner = new BatchRunner(BatchRunner.jobs(options.inputPath, outputDir),
+                options.workers, options.virtualThreads);
+        }
+        catch (IOException e) {
+            System.err.println("Unable to read batch input: " + options.inputPath);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            runner.run();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Batch interrupted.");
+        }
+        runner.summarize(System.out, System.nanoTime() - start);
+    }
+
+    public static void runSweep(Options options) {
+        String outputPath = options.outputPath(SWEEP_OUTPUT_NAME);
+        SweepRunner runner;
+        try {
+            PipelineConfig base = options.pipelineConfig();
+            List<String> programs = new ArrayList<String>();
+            for (BatchRunner.Job job : BatchRunner.jobs(options.inputPath, ".")) programs.add(job.inputPath);
+            runner = new SweepRunner(SweepRunner.configs(base,
+                SweepRunner.readAxes(options.sweepPath, base), options.sweepSamples, options.sweepSeed),
+                programs, options.workers);
+        }
+        catch (IOException e) {
+            System.err.println("Unable to read sweep input: " + options.sweepPath + ", " + options.inputPath);
+            return;
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        long start = System.nanoTime();
+        runner.load();
+        try {
+            runner.reuse(outputPath);
+        }
+        catch (IOException e) {
+            System.err.println("Unable to read previous sweep results: " + outputPath);
+        }
+        runner.run();
+        try {
+            runner.save(outputPath);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write sweep results: " + outputPath);
+        }
+        runner.summarize(System.out, System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        String inputPath = options.inputPath;
+        if (options.batch) {
+            runBatch(options);
+            return;
+        }
+        if (null != options.sweepPath) {
+            runSweep(options);
+            return;
         }
 
         try {
-            Memory memory = new Memory(inputPath);
+            Memory memory = Memory.read(inputPath);
+            if (null != options.convertTo) {
+                String outputPath = options.outputPath(
+                    Options.ImageFormat.BINARY == options.convertTo ? BINARY_IMAGE_NAME : TEXT_IMAGE_NAME);
+                try {
+                    writeImage(memory, options.convertTo, outputPath);
+                }
+                catch (IOException e) {
+                    System.err.println("Failed to write image file: " + outputPath);
+                }
+                return;
+            }
+            if (options.functional) {
+                String outputPath = options.outputPath(FINAL_STATE_NAME);
+                FunctionalSimulator sim = new FunctionalSimulator(memory);
+                if (options.translateThreshold > 0) sim.enableTranslation(options.translateThreshold);
+                try {
+                    writeFunctional(sim, outputPath);
+                }
+                catch (IOException e) {
+                    System.err.println("Failed to write final state file: " + outputPath);
+                }
+                return;
+            }
             // No disassembly file was requested for project 2.
             // try {
             //     writeDisassembly(memory.disassemble());
@@ -1824,12 +7399,104 @@ public class MIPSsim {
             // catch (IOException e) {
             //     System.err.println("Failed to write dissassembly to file: " + DISASSEMBLY_NAME);
             // }
-            Processor proc = new Processor(memory);
+            String outputPath = options.outputPath(SIMULATION_NAME);
+            PipelineConfig config;
             try {
-                writeSimulation(proc.simulate());
+                config = options.pipelineConfig();
             }
             catch (IOException e) {
-                System.err.println("Failed to write simulation file: " + SIMULATION_NAME);
+                System.err.println("Unable to read pipeline configuration: " + options.configPath);
+                return;
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+            if (!config.isDefault() && null != options.defaultPipelineOption()) {
+                System.err.println(options.defaultPipelineOption() + " requires the default pipeline configuration.");
+                return;
+            }
+            if (null != options.fromTracePath) {
+                try {
+                    writeFromTrace(memory, options.fromTracePath, options.snapshots, outputPath);
+                }
+                catch (IOException e) {
+                    System.err.println("Failed to regenerate simulation from trace: " + options.fromTracePath);
+                }
+                return;
+            }
+            Processor proc;
+            if (options.fastForward() && null == options.resumePath) {
+                try {
+                    proc = fastForward(memory, options, config);
+                }
+                catch (IllegalStateException e) {
+                    System.err.println(e.getMessage());
+                    return;
+                }
+            }
+            else {
+                proc = new Processor(memory, config);
+            }
+            if (null != options.resumePath) {
+                try {
+                    Checkpointer.restore(proc, options.resumePath);
+                }
+                catch (IOException e) {
+                    System.err.println("Unable to read checkpoint: " + options.resumePath);
+                    return;
+                }
+            }
+            proc.filter = options.snapshots;
+            if (null != options.checkpointPath) {
+                proc.checkpointer = new Checkpointer(options.checkpointPath, options.checkpointInterval);
+                proc.checkpointer.installShutdownHook();
+            }
+            Writer statsWriter = null;
+            if (null != options.statsPath) {
+                try {
+                    statsWriter = newOutputWriter(options.statsPath);
+                }
+                catch (IOException e) {
+                    System.err.println("Failed to write stats file: " + options.statsPath);
+                    return;
+                }
+                proc.stats = new PipelineStats(options.statsFormat(), statsWriter, options.statsInterval, proc.config);
+            }
+            if (null != options.profilePath || null != options.foldedPath) {
+                proc.profile = new ExecutionProfile(proc.memory);
+            }
+            if (options.statsHost || FlightRecorder.isInitialized()) {
+                proc.host = new HostMetrics();
+                proc.host.start();
+            }
+            try {
+                if (null != options.tracePath) {
+                    try {
+                        writeTrace(proc, options.tracePath, options.keyframeInterval);
+                    }
+                    catch (IOException e) {
+                        System.err.println("Failed to write trace file: " + options.tracePath);
+                    }
+                    return;
+                }
+                try {
+                    if (options.async) writeSimulationAsync(proc, outputPath, options);
+                    else writeSimulation(proc, outputPath);
+                }
+                catch (IOException e) {
+                    // Opening the output reports just its path, but a resume can
+                    // also fail because the output is shorter than the checkpoint.
+                    String reason = outputPath.equals(e.getMessage()) ? "" : ", " + e.getMessage();
+                    System.err.println("Failed to write simulation file: " + outputPath + reason);
+                }
+            }
+            finally {
+                if (null != proc.host) proc.host.finish();
+                if (null != statsWriter) writeStats(proc.stats, statsWriter, options.statsPath);
+                if (null != options.profilePath) writeProfile(proc.profile, options.profilePath, false);
+                if (null != options.foldedPath) writeProfile(proc.profile, options.foldedPath, true);
+                if (options.statsHost) System.err.println(proc.host.summary());
             }
         }
         catch (IOException e) {
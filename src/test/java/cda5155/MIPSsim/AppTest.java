@@ -6,9 +6,21 @@ import java.util.regex.Matcher;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class AppTest 
     extends TestCase
@@ -391,4 +403,1017 @@ public class AppTest
     public static void testProg1() throws IOException {
         testAssembledSimulation("proj2/prog1.mips", "proj2/prog1.out");
     }
+
+    public void testFetchInstruction() {
+        Memory memory = new Memory(splitLines(String.join("\n",
+            Instruction.assembleString("ADDI R1, R0, #3"),
+            Instruction.assembleString("MULT R1, R1"),
+            Instruction.assembleString("BREAK"),
+            "00000000000000000000000000000111"
+        )));
+        Instruction inst = memory.fetchInstruction(260);
+        assertSame(inst, memory.fetchInstruction(260));
+        assertEquals("MULT R1, R1", inst.disassemble());
+        assertEquals(InstType.BREAK, memory.fetchInstruction(264).type());
+    }
+
+    // The lines of a seeded ProgramGenerator program.
+    static List<String> generatedProgram(long seed, ProgramGenerator.Mix mix, int instructions) {
+        ProgramGenerator generator = new ProgramGenerator();
+        generator.seed = seed;
+        generator.mix = mix;
+        generator.instructions = instructions;
+        return generator.generate();
+    }
+
+    // The simulation text of lines on the default pipeline.
+    static String simulation(List<String> lines) {
+        return new Processor(new Memory(lines)).simulate();
+    }
+
+    public static List<String> loopProgram() {
+        return splitLines(String.join("\n",
+            Instruction.assembleString("ADDI R1, R0, #3"),
+            Instruction.assembleString("ADDI R2, R0, #5"),
+            Instruction.assembleString("MULT R1, R2"),
+            Instruction.assembleString("ADDI R2, R2, #-1"),
+            Instruction.assembleString("MFLO R3"),
+            Instruction.assembleString("ADD R4, R4, R3"),
+            Instruction.assembleString("SW R4, 292(R0)"),
+            Instruction.assembleString("BGTZ R2, #-24"),
+            Instruction.assembleString("BREAK"),
+            "00000000000000000000000000000000"
+        ));
+    }
+
+    // The simulation of loopProgram() written by the simulator before
+    // simulate() streamed its output.
+    static String loopSimulation() throws IOException {
+        InputStream in = AppTest.class.getResourceAsStream("/loop_simulation.txt");
+        try {
+            return new String(in.readAllBytes(), MIPSsim.CHARSET).replace("\n", MIPSsim.LINE_SEP);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public void testSimulateStreaming() throws IOException {
+        String expected = loopSimulation();
+        assertEquals(expected, new Processor(new Memory(loopProgram())).simulate());
+        StringBuilder builder = new StringBuilder();
+        int cycles = new Processor(new Memory(loopProgram())).simulate(builder);
+        assertEquals(expected, builder.toString());
+        assertEquals(expected.split("Cycle ").length - 1, cycles);
+        // A writer with a tiny buffer takes the text in many small writes.
+        StringWriter out = new StringWriter();
+        Writer writer = new BufferedWriter(out, 7);
+        new Processor(new Memory(loopProgram())).simulate(writer);
+        writer.flush();
+        assertEquals(expected, out.toString());
+    }
+
+    public void testRendererAppendInt() {
+        SnapshotRenderer renderer = new SnapshotRenderer(new Memory(loopProgram()));
+        int[] values = {0, 7, -7, 10, -32768, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        StringBuilder expected = new StringBuilder();
+        for (int value : values) {
+            renderer.appendInt(value);
+            renderer.append(' ');
+            expected.append(value).append(' ');
+        }
+        assertEquals(expected.toString(), renderer.toString());
+    }
+
+    public void testFunctionalSimulator() {
+        Memory memory = new Memory(loopProgram());
+        FunctionalSimulator sim = new FunctionalSimulator(memory);
+        assertTrue(sim.run());
+        assertEquals(32, sim.instructionCount());
+        assertEquals(288, sim.pc());
+        int[] registers = sim.registers();
+        assertEquals(3, registers[1]);
+        assertEquals(0, registers[2]);
+        assertEquals(3, registers[3]);
+        assertEquals(45, registers[4]);
+        assertEquals(3, registers[RegisterFile.LO_INDEX]);
+        assertEquals(0, registers[RegisterFile.HI_INDEX]);
+        assertEquals(45, memory.fetch(292));
+    }
+
+    public void testFunctionalSimulatorLimits() {
+        FunctionalSimulator sim = new FunctionalSimulator(new Memory(loopProgram()));
+        assertFalse(sim.run(3, -1));
+        assertEquals(3, sim.instructionCount());
+        assertEquals(268, sim.pc());
+        assertFalse(sim.run(Long.MAX_VALUE, 284));
+        assertEquals(284, sim.pc());
+        assertTrue(sim.run());
+        assertEquals(32, sim.instructionCount());
+    }
+
+    public void testBlockTranslator() {
+        Memory interpretedMemory = new Memory(loopProgram());
+        FunctionalSimulator interpreted = new FunctionalSimulator(interpretedMemory);
+        interpreted.run();
+        Memory translatedMemory = new Memory(loopProgram());
+        FunctionalSimulator translated = new FunctionalSimulator(translatedMemory);
+        translated.enableTranslation(2);
+        assertTrue(translated.run());
+        assertTrue(translated.translator().compiledCount() > 0);
+        assertEquals(interpreted.instructionCount(), translated.instructionCount());
+        assertEquals(interpreted.pc(), translated.pc());
+        assertTrue(Arrays.equals(interpreted.registers(), translated.registers()));
+        assertEquals(interpretedMemory.fetch(292), translatedMemory.fetch(292));
+    }
+
+    public void testBlockTranslatorLimits() {
+        FunctionalSimulator sim = new FunctionalSimulator(new Memory(loopProgram()));
+        sim.enableTranslation(1);
+        assertFalse(sim.run(10, -1));
+        assertEquals(10, sim.instructionCount());
+        assertFalse(sim.run(Long.MAX_VALUE, 276));
+        assertEquals(276, sim.pc());
+        assertTrue(sim.run());
+        assertEquals(32, sim.instructionCount());
+    }
+
+    static List<String> assemble(String... source) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : source) lines.add(Instruction.assembleString(line));
+        return lines;
+    }
+
+    static void assertSameState(FunctionalSimulator expected, FunctionalSimulator actual) {
+        assertEquals(expected.instructionCount(), actual.instructionCount());
+        assertEquals(expected.pc(), actual.pc());
+        assertTrue(Arrays.equals(expected.registers(), actual.registers()));
+    }
+
+    // Generated programs of every mix reach every kind of instruction the
+    // translator emits, and translated they end as interpreted.
+    public void testBlockTranslatorMixes() {
+        ProgramGenerator generator = new ProgramGenerator();
+        generator.instructions = 400;
+        generator.tripCount = 6;
+        for (ProgramGenerator.Mix mix : ProgramGenerator.Mix.values()) {
+            generator.mix = mix;
+            for (int seed = 1; seed <= 3; ++seed) {
+                generator.seed = seed;
+                List<String> lines = generator.generate();
+                Memory interpretedMemory = new Memory(lines);
+                FunctionalSimulator interpreted = new FunctionalSimulator(interpretedMemory);
+                assertTrue(interpreted.run());
+                Memory translatedMemory = new Memory(lines);
+                FunctionalSimulator translated = new FunctionalSimulator(translatedMemory);
+                translated.enableTranslation(2);
+                assertTrue(translated.run());
+                assertTrue(mix + " " + seed, translated.translator().compiledCount() > 0);
+                assertSameState(interpreted, translated);
+                for (int addr = interpretedMemory.dataStartAddr(); addr < interpretedMemory.maxAddr(); addr += 4) {
+                    assertEquals(mix + " " + seed + " " + addr, interpretedMemory.fetch(addr), translatedMemory.fetch(addr));
+                }
+            }
+        }
+    }
+
+    // A block that throws part way leaves the state the interpreter does.
+    public void testBlockTranslatorFault() {
+        String[] divisors = {"R1", "R0"};
+        for (String divisor : divisors) {
+            List<String> lines = assemble("ADDI R1, R0, #5", "ADDI R2, R0, #7", "DIV R2, " + divisor,
+                "MFLO R3", "SW R3, 260(R0)", "BREAK");
+            FunctionalSimulator interpreted = new FunctionalSimulator(new Memory(lines));
+            RuntimeException expected = null;
+            try {
+                interpreted.run();
+            }
+            catch (RuntimeException e) {
+                expected = e;
+            }
+            FunctionalSimulator translated = new FunctionalSimulator(new Memory(lines));
+            translated.enableTranslation(1);
+            try {
+                translated.run();
+                fail("No fault with divisor " + divisor);
+            }
+            catch (RuntimeException e) {
+                assertEquals(expected.getClass(), e.getClass());
+            }
+            assertEquals(1, translated.translator().compiledCount());
+            assertEquals("R1".equals(divisor) ? 4 : 2, translated.instructionCount());
+            assertSameState(interpreted, translated);
+        }
+    }
+
+    public void testRegisterFileSync() {
+        RegisterFile source = new RegisterFile();
+        RegisterFile dest = new RegisterFile();
+        source.set(3, 7);
+        source.setAwaiting(RegisterFile.LO_HI_INDEX);
+        source.setAwaiting(5);
+        RegisterFile.sync(dest, source);
+        assertEquals(7, dest.get(3));
+        assertTrue(dest.getAwaiting(RegisterFile.LO_HI_INDEX));
+        assertTrue(dest.getAwaiting(5));
+        assertFalse(dest.getAwaiting(3));
+        // Writes that were already synced are not copied again.
+        dest.set(3, 9);
+        RegisterFile.sync(dest, source);
+        assertEquals(9, dest.get(3));
+    }
+
+    public void testSlotRing() {
+        SlotRing ring = new SlotRing(3);
+        assertEquals(3, ring.capacity());
+        for (int round = 0; round < 5; ++round) {
+            ring.push(10 * round + 1);
+            ring.push(10 * round + 2);
+            ring.push(10 * round + 3);
+            assertTrue(ring.isFull());
+            ring.remove(1);
+            ring.compact();
+            assertEquals(2, ring.size());
+            assertEquals(10 * round + 1, ring.get(0));
+            assertEquals(10 * round + 3, ring.get(1));
+            assertEquals(10 * round + 1, ring.pop());
+            assertEquals(10 * round + 3, ring.pop());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    public void testInstructionMasks() {
+        Instruction mult = Instruction.decode(256, Instruction.assemble("MULT R1, R2"));
+        assertEquals(1L << 1 | 1L << 2, mult.srcMask());
+        assertEquals(1L << RegisterFile.LO_INDEX | 1L << RegisterFile.HI_INDEX, mult.destMask());
+        Instruction mflo = Instruction.decode(260, Instruction.assemble("MFLO R3"));
+        assertEquals(1L << RegisterFile.LO_INDEX, mflo.srcMask());
+        assertEquals(1L << 3, mflo.destMask());
+        Instruction sw = Instruction.decode(264, Instruction.assemble("SW R4, 8(R5)"));
+        assertEquals(Instruction.STORE_BIT | 1L << 4 | 1L << 5, sw.srcMask());
+        assertEquals(0L, sw.destMask());
+
+        RegisterFile regFile = new RegisterFile();
+        regFile.setAwaiting(mult.dest());
+        assertTrue(regFile.getAwaiting(mflo));
+        assertFalse(regFile.getAwaiting(sw));
+        regFile.set(RegisterFile.LO_INDEX, 1);
+        assertTrue(regFile.getAwaiting(RegisterFile.LO_HI_INDEX));
+        regFile.set(RegisterFile.HI_INDEX, 0);
+        assertFalse(regFile.getAwaiting(mflo));
+    }
+
+    public void testProgramGenerator() throws IOException {
+        ProgramGenerator generator = ProgramGenerator.parse(new String[] {
+            "seed=42", "mix=memory", "instructions=500", "blockLength=20",
+            "tripCount=3", "branchDensity=0.2", "dataWords=40"
+        });
+        List<String> lines = generator.generate();
+        assertEquals(540, lines.size());
+        assertEquals(lines, generator.generate());
+        StringBuilder builder = new StringBuilder();
+        generator.generate(builder);
+        assertEquals(String.join(MIPSsim.LINE_SEP, lines) + MIPSsim.LINE_SEP, builder.toString());
+
+        Memory memory = new Memory(lines);
+        assertEquals(Memory.index2addr(500), memory.dataStartAddr());
+        assertEquals(InstType.BREAK, memory.fetchInstruction(Memory.index2addr(499)).type());
+        FunctionalSimulator sim = new FunctionalSimulator(memory);
+        assertTrue(sim.run());
+        assertEquals(memory.dataStartAddr(), sim.registers()[ProgramGenerator.BASE_REG]);
+        new Processor(new Memory(lines)).simulate();
+
+        generator.seed = 43;
+        assertFalse(lines.equals(generator.generate()));
+        try {
+            ProgramGenerator.parse(new String[] {"size=1"});
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testBinaryImage() throws IOException {
+        String expected = new Processor(new Memory(loopProgram())).simulate();
+        Path binary = Files.createTempFile("image", ".bin");
+        Path text = Files.createTempFile("image", ".txt");
+        try {
+            new Memory(loopProgram()).writeBinary(binary.toString());
+            assertEquals(Memory.HEADER_SIZE + 4 * loopProgram().size(), Files.size(binary));
+            assertTrue(Memory.isBinaryImage(binary));
+            Memory memory = Memory.read(binary.toString());
+            assertEquals(256, memory.entryAddr());
+            assertEquals(Memory.index2addr(9), memory.dataStartAddr());
+            assertEquals(expected, new Processor(memory).simulate());
+            // Stores go to pages copied from the mapping, not the file.
+            assertEquals(expected, new Processor(binary.toString()).simulate());
+            // A file we cannot write is still mapped rather than copied.
+            if (binary.toFile().setWritable(false)) {
+                memory = Memory.read(binary.toString());
+                assertTrue(memory._image.isDirect());
+                assertEquals(expected, new Processor(memory).simulate());
+                binary.toFile().setWritable(true);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            Memory.read(binary.toString()).writeText(builder);
+            Files.write(text, builder.toString().getBytes(MIPSsim.CHARSET));
+            assertFalse(Memory.isBinaryImage(text));
+            assertEquals(loopProgram(), Files.readAllLines(text));
+        }
+        finally {
+            Files.delete(binary);
+            Files.delete(text);
+        }
+    }
+
+    public void testTextImageParser() throws IOException {
+        String text = "01000000001000000000000000000011\n"
+            + "00011000000000000000000000000000\r\n"
+            + "11111111111111111111111111111111 trailing\r"
+            + "10000000000000000000000000000021\n"
+            + "00000000000000000000000000000101";
+        List<String> lines = new ArrayList<String>();
+        for (String line : text.split("\r\n|\r|\n")) lines.add(line);
+        int[] expected = new int[lines.size()];
+        for (int k = 0; k < expected.length; ++k) expected[k] = Memory.string2word(lines.get(k));
+
+        byte[] bytes = text.getBytes(MIPSsim.CHARSET);
+        TextImageParser parser = new TextImageParser(1);
+        assertEquals(bytes.length, parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, true));
+        assertTrue(Arrays.equals(expected, parser.toArray()));
+
+        // One byte per read splits every line across reads.
+        InputStream trickle = new ByteArrayInputStream(bytes) {
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(1, len));
+            }
+        };
+        assertTrue(Arrays.equals(expected, TextImageParser.parse(trickle)));
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(bytes);
+        gzip.close();
+        assertTrue(Arrays.equals(expected,
+            TextImageParser.parse(new ByteArrayInputStream(gzipped.toByteArray()))));
+
+        Memory memory = new Memory(TextImageParser.parse(new ByteArrayInputStream(bytes)));
+        assertEquals(Memory.index2addr(2), memory.dataStartAddr());
+
+        try {
+            TextImageParser.parse(new ByteArrayInputStream("0101\n".getBytes(MIPSsim.CHARSET)));
+            fail();
+        }
+        catch (IOException e) {
+        }
+    }
+
+    public void testTextImageParserParallel() throws IOException {
+        List<String> lines = new ProgramGenerator().generate();
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 3 * TextImageParser.CHUNK_SIZE) {
+            for (String line : lines) builder.append(line).append('\n');
+        }
+        byte[] bytes = builder.toString().getBytes(MIPSsim.CHARSET);
+        TextImageParser parser = new TextImageParser(1);
+        parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, true);
+        int[] parallel = TextImageParser.parseParallel(ByteBuffer.wrap(bytes));
+        assertEquals(bytes.length / TextImageParser.LINE_LENGTH, parallel.length);
+        assertTrue(Arrays.equals(parser.toArray(), parallel));
+        assertEquals(Memory.string2word(lines.get(1)), parallel[lines.size() + 1]);
+    }
+
+    public void testSparseMemory() {
+        Memory memory = new Memory(loopProgram());
+        assertEquals(0, memory.pageCount());
+        // Reads outside the image see zeros without allocating.
+        assertEquals(0, memory.fetch(0x7FFFFFF0));
+        assertEquals(0, memory.fetch(-4));
+        assertEquals(0, memory.pageCount());
+        // The image is copied into its page when first read.
+        assertEquals(Memory.string2word(loopProgram().get(1)), memory.fetch(260));
+        assertEquals(1, memory.pageCount());
+
+        memory.store(0x7FFFFFF0, 11);
+        memory.store(-4, 12);
+        // Pages 64 apart share a TLB entry.
+        int conflict = 0x7FFFFFF0 + (Memory.TLB_SIZE << Memory.PAGE_SHIFT);
+        memory.store(conflict, 13);
+        assertEquals(11, memory.fetch(0x7FFFFFF0));
+        assertEquals(12, memory.fetch(-4));
+        assertEquals(13, memory.fetch(conflict));
+        assertEquals(4, memory.pageCount());
+        assertEquals(0, memory.fetch(0x7FFFFFF4));
+
+        // The image is unchanged by stores, which land in the page.
+        memory.store(292, 5);
+        assertEquals(5, memory.fetch(292));
+        assertEquals(0, new Memory(loopProgram()).fetch(292));
+        try {
+            memory.store(256, 1);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+        }
+
+        // A copy reads the same words, and later stores to either are its own.
+        Memory copy = memory.copy();
+        assertEquals(memory.pageCount(), copy.pageCount());
+        assertEquals(5, copy.fetch(292));
+        assertEquals(13, copy.fetch(conflict));
+        assertEquals(Memory.string2word(loopProgram().get(1)), copy.fetch(260));
+        copy.store(292, 6);
+        memory.store(-4, 14);
+        assertEquals(5, memory.fetch(292));
+        assertEquals(12, copy.fetch(-4));
+    }
+
+    public void testBatchRunner() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("batch");
+        Path in = Files.createDirectory(dir.resolve("in"));
+        Path out = dir.resolve("out");
+        Files.createDirectory(out);
+        ProgramGenerator generator = new ProgramGenerator();
+        generator.instructions = 200;
+        String[] expected = new String[4];
+        for (int k = 0; k < expected.length; ++k) {
+            generator.seed = k;
+            Files.write(in.resolve("p" + k + ".txt"), generator.generate());
+            expected[k] = new Processor(new Memory(generator.generate())).simulate();
+        }
+
+        List<BatchRunner.Job> jobs = BatchRunner.jobs(in.toString(), out.toString());
+        assertEquals(4, jobs.size());
+        BatchRunner runner = new BatchRunner(jobs, 2, false);
+        assertEquals(0, runner.run());
+        for (int k = 0; k < expected.length; ++k) {
+            assertEquals(out.resolve("p" + k + BatchRunner.OUTPUT_SUFFIX).toString(), jobs.get(k).outputPath);
+            assertEquals(expected[k], new String(Files.readAllBytes(out.resolve("p" + k + BatchRunner.OUTPUT_SUFFIX)), MIPSsim.CHARSET));
+            assertTrue(jobs.get(k).cycles > 0);
+        }
+
+        Path manifest = dir.resolve("manifest.txt");
+        Files.write(manifest, Arrays.asList("# comment", "in/p1.txt named.txt", "", "in/missing.txt"));
+        jobs = BatchRunner.jobs(manifest.toString(), out.toString());
+        assertEquals(2, jobs.size());
+        assertEquals(dir.resolve("named.txt").toString(), jobs.get(0).outputPath);
+        assertEquals(1, new BatchRunner(jobs, 1, true).run());
+        assertEquals(expected[1], new String(Files.readAllBytes(dir.resolve("named.txt")), MIPSsim.CHARSET));
+        assertNotNull(jobs.get(1).error);
+
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        new BatchRunner(jobs, 1, false).summarize(new PrintStream(summary, true), 1000000000L);
+        assertTrue(summary.toString().contains("Failures:\t1"));
+    }
+
+    public void testCheckpoint() throws IOException, InterruptedException {
+        List<String> lines = generatedProgram(3, ProgramGenerator.Mix.MEMORY, 300);
+        String expected = simulation(lines);
+
+        Path path = Files.createTempDirectory("checkpoint").resolve("checkpoint.bin");
+        Processor proc = new Processor(new Memory(lines));
+        proc.checkpointer = new Checkpointer(path.toString(), 100);
+        StringBuilder builder = new StringBuilder();
+        int cycles = proc.simulate(builder);
+        assertEquals(expected, builder.toString());
+        assertTrue(cycles > 100);
+
+        Processor resumed = new Processor(new Memory(lines));
+        Checkpointer.restore(resumed, path.toString());
+        assertEquals(1 + (cycles - 1) / 100 * 100, resumed.cycle);
+        builder.setLength(0);
+        builder.append(expected, 0, (int)resumed.outputLength);
+        assertEquals(cycles, resumed.simulate(builder));
+        assertEquals(expected, builder.toString());
+        assertFalse(proc.checkpointer.requestAndWait(0));
+
+        try {
+            Checkpointer.restore(new Processor(new Memory(generatedProgram(4, ProgramGenerator.Mix.MEMORY, 300))), path.toString());
+            fail("Restored a checkpoint over a different image.");
+        }
+        catch (IOException e) {
+        }
+    }
+
+    public void testFastForward() {
+        List<String> lines = generatedProgram(6, ProgramGenerator.Mix.BALANCED, 300);
+        String expected = simulation(lines);
+        assertEquals(expected, new Processor(new FunctionalSimulator(new Memory(lines))).simulate());
+
+        Memory memory = new Memory(lines);
+        FunctionalSimulator sim = new FunctionalSimulator(memory);
+        sim.run(50, -1);
+        Processor proc = new Processor(sim);
+        assertEquals(sim.pc(), proc.state.pc);
+        assertEquals(sim.pc(), proc.stateNext.pc);
+        assertTrue(Arrays.equals(sim.registers(), proc.state.regFile.values()));
+        assertTrue(Arrays.equals(sim.registers(), proc.stateNext.regFile.values()));
+        assertEquals(0, proc.state.regFile.awaitMask());
+        assertTrue(proc.state.Buf1.isEmpty());
+        String output = proc.simulate();
+        assertTrue(output.startsWith("--------------------" + MIPSsim.LINE_SEP + "Cycle 1:"));
+        assertTrue(output.length() < expected.length());
+
+        // Stopping at the loop's backward branch target.
+        sim = new FunctionalSimulator(new Memory(lines));
+        sim.run(Long.MAX_VALUE, 256 + 4 * ProgramGenerator.PROLOGUE);
+        assertEquals(256 + 4 * ProgramGenerator.PROLOGUE, new Processor(sim).state.pc);
+    }
+
+    // The snapshots of output, which start with SEPARATOR.
+    public static List<String> snapshots(String output) {
+        String separator = "--------------------" + MIPSsim.LINE_SEP;
+        List<String> snapshots = new ArrayList<String>();
+        int start = 0;
+        int next;
+        while (start < output.length()) {
+            next = output.indexOf(separator, start + 1);
+            if (next < 0) next = output.length() + MIPSsim.LINE_SEP.length();
+            snapshots.add(output.substring(start, next - MIPSsim.LINE_SEP.length()));
+            start = next;
+        }
+        return snapshots;
+    }
+
+    public String filtered(List<String> lines, SnapshotFilter filter) {
+        Processor proc = new Processor(new Memory(lines));
+        proc.filter = filter;
+        return proc.simulate();
+    }
+
+    public void testSnapshotFilter() {
+        List<String> lines = generatedProgram(8, ProgramGenerator.Mix.MEMORY, 200);
+        List<String> all = snapshots(simulation(lines));
+        assertTrue(all.size() > 20);
+
+        SnapshotFilter filter = new SnapshotFilter();
+        filter.interval = 5;
+        List<String> expected = new ArrayList<String>();
+        for (int cycle = 5; cycle <= all.size(); cycle += 5) expected.add(all.get(cycle - 1));
+        assertEquals(String.join(MIPSsim.LINE_SEP, expected), filtered(lines, filter));
+
+        filter = new SnapshotFilter();
+        filter.setRanges("12-, 7, 2-3, 3-4");
+        assertTrue(Arrays.equals(new int[] {2, 4, 7, 7, 12, Integer.MAX_VALUE}, filter.ranges));
+        expected.clear();
+        expected.addAll(all.subList(1, 4));
+        expected.add(all.get(6));
+        expected.addAll(all.subList(11, all.size()));
+        assertEquals(String.join(MIPSsim.LINE_SEP, expected), filtered(lines, filter));
+
+        filter = new SnapshotFilter();
+        filter.lastOnly = true;
+        assertEquals(all.get(all.size() - 1), filtered(lines, filter));
+
+        // Every cycle of a running program differs from the one before.
+        filter = new SnapshotFilter();
+        filter.changesOnly = true;
+        assertEquals(String.join(MIPSsim.LINE_SEP, all), filtered(lines, filter));
+
+        Memory memory = new Memory(lines);
+        Processor proc = new Processor(memory);
+        proc.step();
+        filter = new SnapshotFilter();
+        filter.changesOnly = true;
+        assertTrue(filter.accept(proc.state, memory, 1, false));
+        assertFalse(filter.accept(proc.state, memory, 2, false));
+        proc.state.regFile.values()[5] += 1;
+        assertTrue(filter.accept(proc.state, memory, 3, false));
+        memory.store(memory.maxAddr() + 4, 1);
+        assertFalse(filter.accept(proc.state, memory, 4, false));
+        memory.store(memory.dataStartAddr(), memory.fetch(memory.dataStartAddr()));
+        assertFalse(filter.accept(proc.state, memory, 5, false));
+        memory.store(memory.dataStartAddr(), memory.fetch(memory.dataStartAddr()) + 1);
+        assertTrue(filter.accept(proc.state, memory, 6, false));
+        proc.step();
+        assertTrue(filter.accept(proc.state, memory, 7, false));
+
+        filter = new SnapshotFilter();
+        try {
+            filter.setRanges("3-2");
+            fail("Accepted a range that ends before it starts.");
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testTrace() throws IOException {
+        List<String> lines = generatedProgram(9, ProgramGenerator.Mix.MEMORY, 300);
+        String expected = simulation(lines);
+        List<String> all = snapshots(expected);
+
+        Path path = Files.createTempDirectory("trace").resolve("trace.bin");
+        Memory memory = new Memory(lines);
+        TraceWriter writer = new TraceWriter(path.toString(), memory, 7);
+        int cycles;
+        try {
+            cycles = new Processor(memory).trace(writer);
+        }
+        finally {
+            writer.close();
+        }
+        assertEquals(all.size(), cycles);
+        assertTrue(Files.size(path) < expected.length() / 4);
+
+        TraceReader reader = new TraceReader(new Memory(lines), path.toString());
+        try {
+            assertEquals(1, reader.firstCycle());
+            assertEquals(cycles, reader.lastCycle());
+            StringBuilder builder = new StringBuilder();
+            assertEquals(cycles, reader.write(builder, null));
+            assertEquals(expected, builder.toString());
+
+            for (int cycle : new int[] {cycles, 1, 8, 7, 9, 30, 29}) {
+                assertEquals(all.get(cycle - 1) + MIPSsim.LINE_SEP, reader.snapshot(cycle));
+            }
+
+            SnapshotFilter filter = new SnapshotFilter();
+            filter.setRanges("20-22,40");
+            builder.setLength(0);
+            assertEquals(4, reader.write(builder, filter));
+            assertEquals(String.join(MIPSsim.LINE_SEP, all.get(19), all.get(20), all.get(21), all.get(39)), builder.toString());
+        }
+        finally {
+            reader.close();
+        }
+
+        try {
+            new TraceReader(new Memory(generatedProgram(10, ProgramGenerator.Mix.MEMORY, 300)), path.toString());
+            fail("Read a trace over a different image.");
+        }
+        catch (IOException e) {
+        }
+    }
+
+    public void testAsyncSnapshotWriter() throws IOException {
+        List<String> lines = generatedProgram(11, ProgramGenerator.Mix.MEMORY, 300);
+        String expected = simulation(lines);
+
+        for (int capacity : new int[] {1, 2, 1024}) {
+            StringWriter out = new StringWriter();
+            Processor proc = new Processor(new Memory(lines));
+            AsyncSnapshotWriter writer = new AsyncSnapshotWriter(proc.memory, out, capacity);
+            try {
+                proc.simulate(writer);
+            }
+            finally {
+                writer.close();
+            }
+            assertEquals(expected, out.toString());
+        }
+
+        // Filtered cycles still pass on their stores.
+        SnapshotFilter filter = new SnapshotFilter();
+        filter.setRanges("30-31");
+        String filtered = filtered(lines, filter);
+        Processor proc = new Processor(new Memory(lines));
+        proc.filter = new SnapshotFilter();
+        proc.filter.setRanges("30-31");
+        StringWriter out = new StringWriter();
+        AsyncSnapshotWriter writer = new AsyncSnapshotWriter(proc.memory, out, 4);
+        proc.simulate(writer);
+        writer.close();
+        assertEquals(filtered, out.toString());
+
+        // A writer thread that fails with a RuntimeException or an Error
+        // stops the simulation, whether or not the ring fills first.
+        for (int capacity : new int[] {2, 1024}) {
+            for (final Throwable failure : new Throwable[] {new IllegalStateException(), new StackOverflowError()}) {
+                Writer failing = new Writer() {
+                    public void write(char[] buffer, int offset, int length) {
+                        if (failure instanceof Error) throw (Error)failure;
+                        throw (RuntimeException)failure;
+                    }
+
+                    public void flush() {
+                    }
+
+                    public void close() {
+                    }
+                };
+                proc = new Processor(new Memory(lines));
+                writer = new AsyncSnapshotWriter(proc.memory, failing, capacity);
+                try {
+                    try {
+                        proc.simulate(writer);
+                    }
+                    finally {
+                        writer.close();
+                    }
+                    fail("No error with capacity " + capacity);
+                }
+                catch (IOException e) {
+                    assertSame(failure, e.getCause());
+                }
+            }
+        }
+
+        Path path = Files.createTempDirectory("async").resolve("simulation.txt.gz");
+        Options options = Options.parse(new String[] {"--async-capacity", "16", "--gzip"});
+        MIPSsim.writeSimulationAsync(new Processor(new Memory(lines)), path.toString(), options);
+        InputStream in = new GZIPInputStream(Files.newInputStream(path));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) bytes.write(buffer, 0, count);
+            assertEquals(expected, new String(bytes.toByteArray(), MIPSsim.CHARSET));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public void testParallelSnapshotWriter() throws IOException {
+        List<String> lines = generatedProgram(12, ProgramGenerator.Mix.MEMORY, 300);
+        String expected = simulation(lines);
+
+        for (int batch : new int[] {1, 7, 4096}) {
+            StringWriter out = new StringWriter();
+            Processor proc = new Processor(new Memory(lines));
+            SnapshotSink writer = new ParallelSnapshotWriter(proc.memory, out, 3, batch);
+            try {
+                proc.simulate(writer);
+            }
+            finally {
+                writer.close();
+            }
+            assertEquals(expected, out.toString());
+        }
+
+        SnapshotFilter filter = new SnapshotFilter();
+        filter.setRanges("3,30-31,50-");
+        String filtered = filtered(lines, filter);
+        Processor proc = new Processor(new Memory(lines));
+        proc.filter = new SnapshotFilter();
+        proc.filter.setRanges("3,30-31,50-");
+        StringWriter out = new StringWriter();
+        SnapshotSink writer = new ParallelSnapshotWriter(proc.memory, out, 2, 5);
+        proc.simulate(writer);
+        writer.close();
+        assertEquals(filtered, out.toString());
+    }
+
+    public void testPipelineStats() throws IOException {
+        List<String> lines = generatedProgram(11, ProgramGenerator.Mix.BALANCED, 300);
+        String expected = simulation(lines);
+
+        StringBuilder json = new StringBuilder();
+        Processor proc = new Processor(new Memory(lines));
+        proc.stats = new PipelineStats(PipelineStats.Format.JSON, json, 0);
+        assertEquals(expected, proc.simulate());
+        PipelineStats stats = proc.stats;
+        stats.finish();
+        assertEquals(snapshots(expected).size(), stats.cycles);
+        for (long[] histogram : stats.occupancy) {
+            long total = 0;
+            for (long count : histogram) total += count;
+            assertEquals(stats.cycles, total);
+        }
+        long stalls = 0;
+        for (long count : stats.issueStalls) stalls += count;
+        assertTrue(stalls >= stats.issueStallCycles);
+        assertTrue(stats.issued >= stats.completed() - stats.branches);
+        assertEquals(stats.json() + MIPSsim.LINE_SEP, json.toString());
+        assertTrue(json.toString().startsWith("{\"cycles\":" + stats.cycles + ","));
+
+        // A row every 10 cycles, and one for the last.
+        StringBuilder csv = new StringBuilder();
+        proc = new Processor(new Memory(lines));
+        proc.stats = new PipelineStats(PipelineStats.Format.CSV, csv, 10);
+        proc.simulate();
+        proc.stats.finish();
+        String[] rows = csv.toString().split(MIPSsim.LINE_SEP);
+        assertEquals(1 + (stats.cycles + 9) / 10, rows.length);
+        assertTrue(rows[0].startsWith("cycles,completed,ipc,"));
+        assertEquals(rows[0].split(",").length, rows[rows.length - 1].split(",").length);
+        assertTrue(rows[1].startsWith("10,"));
+        assertTrue(rows[rows.length - 1].startsWith(stats.cycles + ","));
+    }
+
+    public void testHostMetrics() throws IOException {
+        List<String> lines = generatedProgram(12, ProgramGenerator.Mix.BALANCED, 300);
+        String expected = simulation(lines);
+
+        Processor proc = new Processor(new Memory(lines));
+        proc.stats = new PipelineStats(PipelineStats.Format.JSON, new StringBuilder(), 0);
+        proc.host = new HostMetrics(16);
+        proc.host.start();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(proc.host.meter(bytes), MIPSsim.CHARSET);
+        int cycles = proc.simulate(writer);
+        writer.close();
+        proc.host.finish();
+        assertEquals(expected, new String(bytes.toByteArray(), MIPSsim.CHARSET));
+        assertEquals(cycles, proc.host.cycles);
+        assertEquals(proc.stats.completed(), proc.host.retired);
+        assertEquals((cycles / 16 + 1) * 16, proc.host.nextProgress);
+        assertTrue(proc.host.hostNanos() > 0);
+        assertEquals(proc.host.hostNanos(), proc.host.hostNanos());
+        assertTrue(proc.host.summary().startsWith("Simulated " + cycles + " cycles, " + proc.host.retired + " instructions in "));
+    }
+
+    public void testExecutionProfile() throws IOException {
+        List<String> lines = generatedProgram(13, ProgramGenerator.Mix.BALANCED, 300);
+        String expected = simulation(lines);
+
+        Processor proc = new Processor(new Memory(lines));
+        proc.stats = new PipelineStats(PipelineStats.Format.JSON, new StringBuilder(), 0);
+        proc.profile = new ExecutionProfile(proc.memory);
+        StringBuilder output = new StringBuilder();
+        int cycles = proc.simulate(output);
+        assertEquals(expected, output.toString());
+        ExecutionProfile profile = proc.profile;
+        assertEquals(cycles, profile.totalCycles());
+        long issued = 0;
+        for (long count : profile.issued) issued += count;
+        assertEquals(proc.stats.issued, issued);
+        for (int k = 0; k < profile.cycles.length; ++k) {
+            assertTrue(profile.issued[k] <= profile.fetched[k]);
+            assertTrue(profile.stalls(k) >= 0);
+        }
+
+        StringBuilder report = new StringBuilder();
+        profile.writeReport(report);
+        assertTrue(report.toString().startsWith("Cycles:\t" + cycles + MIPSsim.LINE_SEP));
+
+        // An inner loop of two trips in an outer loop of three.
+        String[] source = {
+            "ADDI R1, R0, #3",
+            "ADDI R2, R0, #2",
+            "ADDI R3, R3, #1",
+            "ADDI R2, R2, #-1",
+            "BGTZ R2, #-12",
+            "ADDI R1, R1, #-1",
+            "BGTZ R1, #-24",
+            "BREAK"
+        };
+        lines = new ArrayList<String>();
+        for (String line : source) lines.add(Instruction.assembleString(line));
+        proc = new Processor(new Memory(lines));
+        proc.profile = new ExecutionProfile(proc.memory);
+        cycles = proc.simulate(new StringBuilder());
+        profile = proc.profile;
+        List<ExecutionProfile.Loop> loops = profile.loops();
+        assertEquals(2, loops.size());
+        ExecutionProfile.Loop outer = loops.get(0);
+        ExecutionProfile.Loop inner = loops.get(1);
+        assertEquals(260, outer.start);
+        assertEquals(280, outer.end);
+        assertNull(outer.parent);
+        assertEquals(264, inner.start);
+        assertEquals(272, inner.end);
+        assertSame(outer, inner.parent);
+        assertTrue(inner.cycles > 0 && inner.cycles < outer.cycles);
+        assertEquals(3, profile.fetched[Memory.addr2index(260)]);
+        assertEquals(6, profile.issued[Memory.addr2index(264)]);
+
+        StringBuilder folded = new StringBuilder();
+        profile.writeFolded(folded);
+        long total = 0;
+        for (String line : folded.toString().split(MIPSsim.LINE_SEP)) {
+            total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        assertEquals(cycles, total);
+        assertTrue(folded.toString().contains("loop 260-280;loop 264-272;264 ADDI R3, R3, #1 "));
+    }
+
+    public void testPipelineConfig() throws IOException {
+        PipelineConfig config = new PipelineConfig();
+        assertTrue(config.isDefault());
+        List<String> settings = config.settings();
+        assertEquals(config, PipelineConfig.parse(settings.toArray(new String[settings.size()])));
+        config = PipelineConfig.parse(new String[] {"buf1Depth=12", "mulLatency=5", "divPipelined=false"});
+        assertFalse(config.isDefault());
+        assertEquals(12, config.buf1Depth);
+        assertEquals(2, config.hiddenStages(PipelineConfig.MUL));
+        assertEquals(12 + 4 * 2 + 7 + 2, config.slots());
+        settings = config.settings();
+        assertEquals(config, PipelineConfig.parse(settings.toArray(new String[settings.size()])));
+        String[][] invalid = {{"buf1Depth=0"}, {"fetchWidth=x"}, {"mulLatency=0"}, {"memPipelined=false"},
+            {"divPipelined=yes"}, {"unknown=1"}, {"buf2Depth"}};
+        for (String[] setting : invalid) {
+            try {
+                PipelineConfig.parse(setting);
+                fail("Accepted " + setting[0]);
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+
+        // The default settings, given explicitly, change nothing.
+        List<String> lines = generatedProgram(14, ProgramGenerator.Mix.BALANCED, 300);
+        String expected = simulation(lines);
+        config = PipelineConfig.parse(new String[] {"buf1Depth=8", "fetchWidth=4", "mulLatency=3", "divLatency=1"});
+        assertEquals(expected, new Processor(new Memory(lines), config).simulate());
+        // Snapshots show every entry of a deeper Buf1.
+        String output = new Processor(new Memory(lines), PipelineConfig.parse(new String[] {"buf1Depth=12"})).simulate();
+        assertTrue(output.contains("\tEntry 11:"));
+
+        // A loop of MULT, DIV, SW and LW, with enough padding before BREAK
+        // for every instruction of the loop to finish. The registers and data
+        // it leaves do not depend on the latencies, only the cycles taken.
+        List<String> source = new ArrayList<String>(Arrays.asList(
+            "ADDI R1, R0, #5", "ADDI R9, R0, #3",
+            "ADDI R2, R0, #3", "MULT R1, R2", "MFLO R3", "ADD R4, R4, R3",
+            "DIV R4, R9", "MFHI R10", "MFLO R11", "ADD R12, R12, R10",
+            "SW R4, 2000(R0)", "LW R7, 2000(R0)", "ADD R8, R7, R8", "SW R8, 2004(R0)",
+            "ADDI R2, R2, #-1", "BGTZ R2, #-52",
+            "ADDI R1, R1, #-1", "BGTZ R1, #-60"));
+        for (int k = 0; k < 60; ++k) source.add("ADDI R28, R0, #0");
+        source.add("BREAK");
+        lines = new ArrayList<String>();
+        for (String line : source) lines.add(Instruction.assembleString(line));
+        while (Memory.index2addr(lines.size()) <= 2004) lines.add(Memory.word2string(0));
+        Processor reference = new Processor(new Memory(lines));
+        int referenceCycles = 0;
+        while (reference.step()) ++referenceCycles;
+        String[][] shapes = {{"mulLatency=1"}, {"mulLatency=2"}, {"mulLatency=6", "mulPipelined=false"},
+            {"divLatency=8", "divPipelined=false"}, {"alu1Latency=3"}, {"alu1Latency=2", "alu1Pipelined=false"},
+            {"buf2Depth=1", "buf3Depth=1", "buf4Depth=1", "buf5Depth=1"}, {"buf5IssueWidth=1", "fetchWidth=2"}};
+        for (String[] shape : shapes) {
+            Processor proc = new Processor(new Memory(lines), PipelineConfig.parse(shape));
+            int cycles = 0;
+            while (proc.step()) ++cycles;
+            assertTrue(Arrays.toString(shape), Arrays.equals(reference.state.regFile.values(), proc.state.regFile.values()));
+            assertEquals(reference.memory.fetch(2000), proc.memory.fetch(2000));
+            assertEquals(reference.memory.fetch(2004), proc.memory.fetch(2004));
+            if (!"mulLatency=1".equals(shape[0]) && !"mulLatency=2".equals(shape[0])) {
+                assertTrue(Arrays.toString(shape), cycles > referenceCycles);
+            }
+        }
+    }
+
+    public void testSweepRunner() throws IOException {
+        Path dir = Files.createTempDirectory("sweep");
+        Path axes = dir.resolve("axes.txt");
+        Files.write(axes, Arrays.asList("# the grid", "buf1Depth=4, 8", "mulLatency=1,3,5", "fetchWidth=2"));
+        ProgramGenerator generator = new ProgramGenerator();
+        generator.instructions = 200;
+        List<String> programs = new ArrayList<String>();
+        for (int k = 0; k < 2; ++k) {
+            generator.seed = k;
+            Files.write(dir.resolve("p" + k + ".txt"), generator.generate());
+            programs.add(dir.resolve("p" + k + ".txt").toString());
+        }
+        programs.add(dir.resolve("missing.txt").toString());
+
+        PipelineConfig base = PipelineConfig.parse(new String[] {"buf5Depth=3"});
+        List<SweepRunner.Axis> grid = SweepRunner.readAxes(axes.toString(), base);
+        List<PipelineConfig> configs = SweepRunner.configs(base, grid, 0, 1);
+        assertEquals(6, configs.size());
+        assertEquals(PipelineConfig.parse(new String[] {"buf5Depth=3", "buf1Depth=4", "mulLatency=1", "fetchWidth=2"}), configs.get(0));
+        assertEquals(PipelineConfig.parse(new String[] {"buf5Depth=3", "buf1Depth=8", "mulLatency=3", "fetchWidth=2"}), configs.get(4));
+        List<PipelineConfig> sample = SweepRunner.configs(base, grid, 4, 7);
+        assertEquals(4, sample.size());
+        assertEquals(sample, SweepRunner.configs(base, grid, 4, 7));
+        assertTrue(configs.containsAll(sample));
+        try {
+            Files.write(axes, Arrays.asList("memPipelined=true,false"));
+            SweepRunner.configs(base, SweepRunner.readAxes(axes.toString(), base), 0, 1);
+            fail("Accepted memPipelined=false");
+        }
+        catch (IllegalArgumentException e) {
+        }
+
+        String table = dir.resolve("sweep.tsv").toString();
+        SweepRunner runner = new SweepRunner(configs, programs, 2);
+        runner.load();
+        assertEquals(0, runner.reuse(table));
+        assertEquals(6, runner.run());
+        runner.save(table);
+        List<String> lines = Files.readAllLines(dir.resolve("sweep.tsv"), MIPSsim.CHARSET);
+        assertEquals(1 + 6 * 2, lines.size());
+        // Each row matches a run of the same program outside the sweep.
+        String[] fields = lines.get(2).split("\t");
+        assertEquals(configs.get(0).toString(), fields[0]);
+        assertEquals(programs.get(1), fields[1]);
+        generator.seed = 1;
+        Processor proc = new Processor(new Memory(generator.generate()), configs.get(0));
+        proc.stats = new PipelineStats(PipelineStats.Format.CSV, null, 0, configs.get(0));
+        while (proc.step());
+        assertEquals(String.join("\t", proc.stats.counterValues()), lines.get(2).substring(lines.get(2).indexOf(fields[3])));
+
+        // Rerunning keeps every row, and a changed program is run again.
+        runner = new SweepRunner(configs, programs, 2);
+        runner.load();
+        assertEquals(12, runner.reuse(table));
+        assertEquals(6, runner.run());
+        runner.save(table);
+        assertEquals(lines, Files.readAllLines(dir.resolve("sweep.tsv"), MIPSsim.CHARSET));
+        generator.seed = 5;
+        Files.write(dir.resolve("p1.txt"), generator.generate());
+        runner = new SweepRunner(configs, programs, 2);
+        runner.load();
+        assertEquals(6, runner.reuse(table));
+        runner.run();
+        assertNotNull(runner.runs.get(1).values);
+        assertFalse(runner.runs.get(1).cached);
+
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        runner.summarize(new PrintStream(summary, true), 1000000000L);
+        assertTrue(summary.toString().contains("Kept:\t6"));
+        assertTrue(summary.toString().contains("Failures:\t6"));
+    }
 }